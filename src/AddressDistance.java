@@ -0,0 +1,45 @@
+// -------------------------------------------------------------------------
+/**
+ *  Costs a pair of clients by how far apart their addresses are: the number
+ *  of address bits left after the leading bits they share. Clients on the
+ *  same network share long prefixes and so cost little, while an IPv4 and
+ *  an IPv6 client cost more than any two clients of the same kind.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class AddressDistance
+    implements PairCost<ClientConnection>
+{
+    /**
+     * Get the cost of pairing two clients.
+     * @param first
+     *        The client nearer the front of the queue.
+     * @param second
+     *        The client it would be paired with.
+     * @return the number of address bits the clients don't share.
+     */
+    public double cost( ClientConnection first, ClientConnection second )
+    {
+        byte[] a = first.getAddress();
+        byte[] b = second.getAddress();
+
+        if (a.length != b.length)
+        {
+            return 129;
+        }
+
+        for (int i = 0; i < a.length; i++)
+        {
+            int differ = (a[i] ^ b[i]) & 0xff;
+            if (differ != 0)
+            {
+                int shared = 8 * i + Integer.numberOfLeadingZeros(differ) - 24;
+                return 8 * a.length - shared;
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// -------------------------------------------------------------------------
+/**
+ *  BatchBenchmark measures how much better the BatchMatcher pairs players
+ *  than popping two at a time does, against how much longer they wait for
+ *  it. Synthetic players with random ratings arrive at random in virtual
+ *  time, and are paired either as they arrive or once per batch window,
+ *  with the gap between their ratings as the cost.
+ *
+ *  For each window it prints the mean rating gap of the pairs made, the mean
+ *  and longest virtual time players waited, and the real time the matcher
+ *  took per batch. A window of 0 is the plain pop two matcher. Every window
+ *  sees the same players, from a seeded Random.
+ *
+ *  Run with `java BatchBenchmark [players] [seed]`.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class BatchBenchmark
+{
+    private static final long MILLI = 1000000L;
+    private static final double ARRIVALSPERSECOND = 2000;
+    private static final double MEANRATING = 1500;
+    private static final double RATINGSPREAD = 300;
+    private static final int CANDIDATES = 8;
+    private static final long[] WINDOWS = { 0, 25, 50, 100, 200 };
+
+    private List<Player> players;
+    private BatchMatcher<Player> matcher;
+
+    private int pairs;
+    private double totalGap;
+    private long totalWait;
+    private long maxWait;
+    private int batches;
+    private long matchNanos;
+
+    /**
+     * Run the benchmark from the command line and print the results.
+     * @param argv The number of players and the random seed, both optional.
+     */
+    public static void main( String[] argv )
+    {
+        int playerCount = (argv.length > 0 ? Integer.valueOf(argv[0]) :
+            200000);
+        long seed = (argv.length > 1 ? Long.valueOf(argv[1]) : 2114);
+
+        System.out.println("window ms  mean gap  mean wait ms  max wait ms" +
+            "  match us/batch");
+        for (long window : WINDOWS)
+        {
+            BatchBenchmark bench = new BatchBenchmark(seed, playerCount);
+            bench.run(window * MILLI);
+            bench.shutdown();
+
+            System.out.println(String.format("%9d  %8.1f  %12.1f  %11.1f" +
+                "  %14.1f", window, bench.getMeanGap(),
+                bench.getMeanWaitMillis(), bench.getMaxWaitMillis(),
+                bench.getMicrosPerBatch()));
+        }
+    }
+
+    /**
+     * Create a new benchmark.
+     * @param seed
+     *        The seed for the players' arrivals and ratings.
+     * @param playerCount
+     *        How many players arrive.
+     */
+    public BatchBenchmark( long seed, int playerCount )
+    {
+        Random random = new Random(seed);
+        players = new ArrayList<Player>(playerCount);
+
+        long time = 0;
+        for (int i = 0; i < playerCount; i++)
+        {
+            time += (long)(-Math.log(1 - random.nextDouble()) *
+                (1e9 / ARRIVALSPERSECOND));
+            players.add(new Player(MEANRATING +
+                random.nextGaussian() * RATINGSPREAD, time));
+        }
+
+        matcher = new BatchMatcher<Player>(new PairCost<Player>()
+        {
+            public double cost( Player first, Player second )
+            {
+                return Math.abs(first.rating - second.rating);
+            }
+        }, null, CANDIDATES, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Pair up every player.
+     * @param window
+     *        How long to gather players for between batches, in
+     *        nanoseconds, or 0 to pair them two at a time as they arrive.
+     */
+    public void run( long window )
+    {
+        if (window == 0)
+        {
+            for (int i = 0; i + 1 < players.size(); i += 2)
+            {
+                pair(players.get(i), players.get(i + 1),
+                    players.get(i + 1).arrived);
+            }
+            return;
+        }
+
+        List<Player> waiting = new ArrayList<Player>();
+        int next = 0;
+        for (long now = window; next < players.size(); now += window)
+        {
+            while (next < players.size() && players.get(next).arrived <= now)
+            {
+                waiting.add(players.get(next++));
+            }
+
+            long start = System.nanoTime();
+            List<ValidPairQueue.Pair<Player>> made = matcher.match(waiting);
+            matchNanos += System.nanoTime() - start;
+            batches++;
+
+            for (ValidPairQueue.Pair<Player> pair : made)
+            {
+                pair(pair.first(), pair.second(), now);
+            }
+
+            // Keep whoever was left over for the next batch.
+            List<Player> left = new ArrayList<Player>();
+            for (Player player : waiting)
+            {
+                if (!player.paired)
+                {
+                    left.add(player);
+                }
+            }
+            waiting = left;
+        }
+    }
+
+    /**
+     * Stop the matcher's threads.
+     */
+    public void shutdown()
+    {
+        matcher.shutdown();
+    }
+
+    /**
+     * Record a pair being made.
+     * @param first
+     *        The player who arrived first.
+     * @param second
+     *        The other player.
+     * @param now
+     *        When the pair was made, in nanoseconds.
+     */
+    private void pair( Player first, Player second, long now )
+    {
+        first.paired = true;
+        second.paired = true;
+
+        pairs++;
+        totalGap += Math.abs(first.rating - second.rating);
+        for (Player player : new Player[] { first, second })
+        {
+            long wait = now - player.arrived;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+    }
+
+    /**
+     * Get the mean rating gap of the pairs made.
+     * @return the mean gap.
+     */
+    public double getMeanGap()
+    {
+        return (pairs == 0 ? 0 : totalGap / pairs);
+    }
+
+    /**
+     * Get the mean virtual time paired players waited.
+     * @return the mean wait in milliseconds.
+     */
+    public double getMeanWaitMillis()
+    {
+        return (pairs == 0 ? 0 : totalWait / 1e6 / (2 * pairs));
+    }
+
+    /**
+     * Get the longest virtual time a paired player waited.
+     * @return the longest wait in milliseconds.
+     */
+    public double getMaxWaitMillis()
+    {
+        return maxWait / 1e6;
+    }
+
+    /**
+     * Get the mean real time the matcher took per batch.
+     * @return the mean time in microseconds.
+     */
+    public double getMicrosPerBatch()
+    {
+        return (batches == 0 ? 0 : matchNanos / 1e3 / batches);
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A synthetic player.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private static class Player
+    {
+        private double rating;
+        private long arrived;
+        private boolean paired;
+
+        /**
+         * Create a new player.
+         * @param playerRating
+         *        The player's rating.
+         * @param arrivedAt
+         *        When the player arrived, in nanoseconds.
+         */
+        public Player( double playerRating, long arrivedAt )
+        {
+            rating = playerRating;
+            arrived = arrivedAt;
+        }
+    }
+}
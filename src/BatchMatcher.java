@@ -0,0 +1,366 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// -------------------------------------------------------------------------
+/**
+ *  BatchMatcher pairs up a whole batch of waiting items at once, keeping the
+ *  total PairCost of the pairs low, where popping two at a time would just
+ *  pair whoever happens to be next to each other in the queue.
+ *
+ *  Finding the cheapest pairing outright takes O(n^3) time, so instead each
+ *  item keeps only its few cheapest partners as candidates, and the
+ *  candidate pairs are taken greedily from cheapest up, skipping any item
+ *  already paired. Ties go to the items nearer the front of the queue. Any
+ *  items whose candidates were all taken are then paired in queue order, so
+ *  at most one item is left over unless a PairFilter or an infinite cost
+ *  keeps the others apart.
+ *
+ *  Finding the candidates takes a cost for every pair in the batch, and is
+ *  split across a pool of threads when the batch is large. The rest is an
+ *  O(n log n) sort and a pass over the candidates.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ *  @param <Item> The type of the items being matched.
+ */
+
+public class BatchMatcher<Item>
+{
+    private static final int PARALLELSIZE = 256;
+    private static final int CHUNKSPERTHREAD = 4;
+
+    private PairCost<Item> cost;
+    private ValidPairQueue.PairFilter<Item> filter;
+    private int candidates;
+    private int threads;
+    private ExecutorService executor;
+
+    /**
+     * Create a new BatchMatcher.
+     * @param pairCost
+     *        The cost to keep low.
+     * @param pairFilter
+     *        Which items may be paired, or null to allow any pair.
+     * @param candidateCount
+     *        How many of its cheapest partners each item keeps. At least 1.
+     * @param threadCount
+     *        How many threads to find candidates on. At least 1.
+     */
+    public BatchMatcher( PairCost<Item> pairCost,
+        ValidPairQueue.PairFilter<Item> pairFilter, int candidateCount,
+        int threadCount )
+    {
+        if (candidateCount < 1 || threadCount < 1)
+        {
+            throw new IllegalArgumentException("Need at least one candidate " +
+                "and one thread");
+        }
+
+        cost = pairCost;
+        filter = pairFilter;
+        candidates = candidateCount;
+        threads = threadCount;
+    }
+
+    /**
+     * Pair up a batch of items.
+     * @param batch
+     *        The items, front of the queue first.
+     * @return the pairs made, each with the item nearer the front first.
+     */
+    public List<ValidPairQueue.Pair<Item>> match( List<Item> batch )
+    {
+        List<ValidPairQueue.Pair<Item>> pairs =
+            new ArrayList<ValidPairQueue.Pair<Item>>(batch.size() / 2);
+        if (batch.size() < 2)
+        {
+            return pairs;
+        }
+
+        Edge[] edges = findCandidates(batch);
+        if (edges == null)
+        {
+            return pairs;
+        }
+        Arrays.sort(edges);
+
+        // Take the cheapest pairs first.
+        boolean[] paired = new boolean[batch.size()];
+        for (Edge edge : edges)
+        {
+            if (!paired[edge.first] && !paired[edge.second])
+            {
+                paired[edge.first] = true;
+                paired[edge.second] = true;
+                pairs.add(new ValidPairQueue.Pair<Item>(
+                    batch.get(edge.first), batch.get(edge.second)));
+            }
+        }
+
+        // Pair whatever is left over in queue order.
+        for (int i = 0; i < batch.size(); i++)
+        {
+            for (int j = i + 1; !paired[i] && j < batch.size(); j++)
+            {
+                if (!paired[j] && allowed(batch.get(i), batch.get(j)))
+                {
+                    paired[i] = true;
+                    paired[j] = true;
+                    pairs.add(new ValidPairQueue.Pair<Item>(batch.get(i),
+                        batch.get(j)));
+                }
+            }
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Stop the threads used to find candidates. The matcher can still be
+     * used afterwards, on the calling thread only.
+     */
+    public synchronized void shutdown()
+    {
+        threads = 1;
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Find the candidate pairs for every item in a batch, splitting the work
+     * across the thread pool if the batch is large enough to be worth it.
+     * @param batch
+     *        The items.
+     * @return the candidate pairs, or null if interrupted while waiting.
+     */
+    private Edge[] findCandidates( final List<Item> batch )
+    {
+        ExecutorService pool = pool(batch.size());
+        if (pool == null)
+        {
+            return findCandidates(batch, 0, batch.size());
+        }
+
+        int chunks = Math.min(batch.size(), threads * CHUNKSPERTHREAD);
+        List<Future<Edge[]>> results = new ArrayList<Future<Edge[]>>(chunks);
+        for (int c = 0; c < chunks; c++)
+        {
+            final int from = (int)((long)batch.size() * c / chunks);
+            final int to = (int)((long)batch.size() * (c + 1) / chunks);
+            results.add(pool.submit(new Callable<Edge[]>()
+            {
+                public Edge[] call()
+                {
+                    return findCandidates(batch, from, to);
+                }
+            }));
+        }
+
+        List<Edge[]> parts = new ArrayList<Edge[]>(chunks);
+        int total = 0;
+        try
+        {
+            for (Future<Edge[]> result : results)
+            {
+                Edge[] part = result.get();
+                parts.add(part);
+                total += part.length;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        Edge[] edges = new Edge[total];
+        int at = 0;
+        for (Edge[] part : parts)
+        {
+            System.arraycopy(part, 0, edges, at, part.length);
+            at += part.length;
+        }
+        return edges;
+    }
+
+    /**
+     * Find the cheapest partners of some of the items in a batch.
+     * @param batch
+     *        The items.
+     * @param from
+     *        The first item to find partners for.
+     * @param to
+     *        One past the last item to find partners for.
+     * @return the candidate pairs found.
+     */
+    private Edge[] findCandidates( List<Item> batch, int from, int to )
+    {
+        List<Edge> found = new ArrayList<Edge>((to - from) * candidates);
+        Edge[] best = new Edge[candidates];
+
+        for (int i = from; i < to; i++)
+        {
+            int kept = 0;
+
+            for (int j = 0; j < batch.size(); j++)
+            {
+                if (j == i)
+                {
+                    continue;
+                }
+
+                int first = Math.min(i, j);
+                int second = Math.max(i, j);
+                Item a = batch.get(first);
+                Item b = batch.get(second);
+                if (filter != null && !filter.canPair(a, b))
+                {
+                    continue;
+                }
+
+                double c = cost.cost(a, b);
+                if (c == Double.POSITIVE_INFINITY ||
+                    (kept == candidates && c > best[kept - 1].cost))
+                {
+                    continue;
+                }
+
+                Edge edge = new Edge(c, first, second);
+                if (kept == candidates &&
+                    edge.compareTo(best[kept - 1]) >= 0)
+                {
+                    continue;
+                }
+
+                // Insert in order, dropping the most costly if full.
+                int at = (kept < candidates ? kept++ : kept - 1);
+                while (at > 0 && edge.compareTo(best[at - 1]) < 0)
+                {
+                    best[at] = best[at - 1];
+                    at--;
+                }
+                best[at] = edge;
+            }
+
+            for (int k = 0; k < kept; k++)
+            {
+                found.add(best[k]);
+            }
+        }
+
+        return found.toArray(new Edge[found.size()]);
+    }
+
+    /**
+     * Can two items be paired at all.
+     * @param first
+     *        The item nearer the front of the queue.
+     * @param second
+     *        The item it would be paired with.
+     * @return if the filter allows it and the cost isn't infinite.
+     */
+    private boolean allowed( Item first, Item second )
+    {
+        return (filter == null || filter.canPair(first, second)) &&
+            cost.cost(first, second) != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Get the thread pool for a batch, starting it if need be.
+     * @param batchSize
+     *        The number of items in the batch.
+     * @return the pool, or null if the batch should be matched on the
+     *         calling thread.
+     */
+    private synchronized ExecutorService pool( int batchSize )
+    {
+        if (threads == 1 || batchSize < PARALLELSIZE)
+        {
+            return null;
+        }
+
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory()
+                {
+                    public Thread newThread( Runnable task )
+                    {
+                        Thread thread = new Thread(task);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A candidate pair, by the positions of its items in the batch, sorted
+     *  by cost and then by how near the front of the queue it is.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private static class Edge
+        implements Comparable<Edge>
+    {
+        private double cost;
+        private int first;
+        private int second;
+
+        /**
+         * Create a new candidate pair.
+         * @param pairCost
+         *        The cost of the pair.
+         * @param firstIndex
+         *        The position of the item nearer the front.
+         * @param secondIndex
+         *        The position of the other item.
+         */
+        public Edge( double pairCost, int firstIndex, int secondIndex )
+        {
+            cost = pairCost;
+            first = firstIndex;
+            second = secondIndex;
+        }
+
+        /**
+         * Order pairs by cost, then by the positions of their items.
+         * @param other
+         *        The pair to compare with.
+         * @return negative, zero or positive as this pair comes first.
+         */
+        public int compareTo( Edge other )
+        {
+            if (cost != other.cost)
+            {
+                return (cost < other.cost ? -1 : 1);
+            }
+            if (first != other.first)
+            {
+                return (first < other.first ? -1 : 1);
+            }
+            if (second != other.second)
+            {
+                return (second < other.second ? -1 : 1);
+            }
+            return 0;
+        }
+    }
+}
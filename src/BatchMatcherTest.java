@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import student.TestCase;
+
+// -------------------------------------------------------------------------
+/**
+ *  TestSuite for the BatchMatcher
+ *  Test that cheap pairs are made first, that leftovers are still paired,
+ *  that filters and infinite costs are kept to, and that matching across
+ *  threads makes the same pairs as matching on one.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class BatchMatcherTest
+    extends TestCase
+{
+    private PairCost<Integer> gap;
+
+    /**
+     * Setup method called before all tests.
+     */
+    public void setUp()
+    {
+        // The gap between two ratings, never pairing those 500 apart.
+        gap = new PairCost<Integer>()
+        {
+            public double cost( Integer first, Integer second )
+            {
+                int difference = Math.abs(first - second);
+                return (difference >= 500 ? Double.POSITIVE_INFINITY :
+                    difference);
+            }
+        };
+    }
+
+    /**
+     * Test that the cheapest pairs are made, with the item nearer the front
+     * first in each pair.
+     */
+    public void testCheapestPairs()
+    {
+        BatchMatcher<Integer> matcher = new BatchMatcher<Integer>(gap, null,
+            4, 1);
+
+        List<ValidPairQueue.Pair<Integer>> pairs =
+            matcher.match(Arrays.asList(100, 400, 110, 390));
+
+        assertEquals("100-110 400-390", describe(pairs));
+    }
+
+    /**
+     * Test that items whose candidates were all taken are paired in queue
+     * order.
+     */
+    public void testLeftovers()
+    {
+        BatchMatcher<Integer> matcher = new BatchMatcher<Integer>(gap, null,
+            1, 1);
+
+        List<ValidPairQueue.Pair<Integer>> pairs =
+            matcher.match(Arrays.asList(0, 10, 11, 30));
+
+        assertEquals("10-11 0-30", describe(pairs));
+    }
+
+    /**
+     * Test that items the filter or the cost keep apart are never paired.
+     */
+    public void testFilterAndInfiniteCost()
+    {
+        ValidPairQueue.PairFilter<Integer> different =
+            new ValidPairQueue.PairFilter<Integer>()
+        {
+            public boolean canPair( Integer first, Integer second )
+            {
+                return !first.equals(second);
+            }
+        };
+        BatchMatcher<Integer> matcher = new BatchMatcher<Integer>(gap,
+            different, 4, 1);
+
+        assertEquals("1-2 1-2",
+            describe(matcher.match(Arrays.asList(1, 1, 2, 2))));
+        assertEquals("", describe(matcher.match(Arrays.asList(0, 1000))));
+        assertEquals("", describe(matcher.match(Arrays.asList(7))));
+    }
+
+    /**
+     * Test that a batch big enough to be split across threads is paired the
+     * same as on one thread.
+     */
+    public void testParallel()
+    {
+        Random random = new Random(2114);
+        List<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < 1001; i++)
+        {
+            batch.add(random.nextInt(3000));
+        }
+
+        BatchMatcher<Integer> serial = new BatchMatcher<Integer>(gap, null,
+            8, 1);
+        BatchMatcher<Integer> parallel = new BatchMatcher<Integer>(gap, null,
+            8, 4);
+
+        String expected = describe(serial.match(batch));
+        assertEquals(expected, describe(parallel.match(batch)));
+
+        parallel.shutdown();
+        assertEquals(expected, describe(parallel.match(batch)));
+    }
+
+    /**
+     * Test that a matcher can't be made without candidates or threads.
+     */
+    public void testBadSettings()
+    {
+        boolean caught = false;
+        try
+        {
+            new BatchMatcher<Integer>(gap, null, 0, 1);
+        }
+        catch (IllegalArgumentException e)
+        {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+
+    /**
+     * Write out a list of pairs.
+     * @param pairs
+     *        The pairs.
+     * @return the pairs, as "first-second" separated by spaces.
+     */
+    private String describe( List<ValidPairQueue.Pair<Integer>> pairs )
+    {
+        StringBuilder out = new StringBuilder();
+        for (ValidPairQueue.Pair<Integer> pair : pairs)
+        {
+            if (out.length() > 0)
+            {
+                out.append(' ');
+            }
+            out.append(pair.first()).append('-').append(pair.second());
+        }
+        return out.toString();
+    }
+}
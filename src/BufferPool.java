@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// -------------------------------------------------------------------------
+/**
+ *  BufferPool lends out byte buffers of a fixed size, so that connections
+ *  only need a buffer while a read is actually going on and can share a
+ *  handful between them instead of each keeping its own.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class BufferPool
+{
+    private ArrayDeque<ByteBuffer> free;
+    private int bufferSize;
+    private int maxFree;
+
+    /**
+     * Create a new empty BufferPool.
+     * @param size
+     *        The size in bytes of the buffers handed out.
+     * @param keep
+     *        The most buffers to keep around when they're not in use.
+     */
+    public BufferPool( int size, int keep )
+    {
+        free = new ArrayDeque<ByteBuffer>();
+        bufferSize = size;
+        maxFree = keep;
+    }
+
+    /**
+     * Borrow a cleared buffer from the pool, making a new one if none are
+     * free.
+     * @return the buffer.
+     */
+    public synchronized ByteBuffer borrow()
+    {
+        ByteBuffer buffer = free.poll();
+
+        return (buffer == null ? ByteBuffer.allocate(bufferSize) : buffer);
+    }
+
+    /**
+     * Give a borrowed buffer back to the pool.
+     * @param buffer
+     *        The buffer to give back.
+     */
+    public synchronized void release( ByteBuffer buffer )
+    {
+        if (free.size() < maxFree)
+        {
+            buffer.clear();
+            free.push(buffer);
+        }
+    }
+
+    /**
+     * Get the number of buffers waiting in the pool.
+     * @return the number of free buffers.
+     */
+    public synchronized int freeCount()
+    {
+        return free.size();
+    }
+}
@@ -1,89 +1,99 @@
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 
 
 // -------------------------------------------------------------------------
 /**
  *  ClientConnection manages a single connection from the client.
- *  Each ClientConnection is a thread which handles a single connection
- *  coming into the server from a client program.
+ *  Each ClientConnection handles a single connection coming into the server
+ *  from a client program. It talks to the client through a Link handed out
+ *  by the server's Transport, which hands it each line the client sends.
  *
  *  @author ram
  *  @version 2010.11.16
  */
 
 public class ClientConnection
-    implements Runnable, Validity
+    implements Validity
 {
-    private Socket conn;
-    private BufferedReader in;
-    private PrintWriter out;
+    private Link link;
     private boolean stillValid;
+    private ClientListener listener;
+    private String sessionToken;
+    private long arrivalTime;
+    private LocalityIndex.Entry localityEntry;
+    private Lane lane;
 
     /**
      * Create a new client connection.
-     * @param socket
-     *        The socket of the incoming connection.
+     * @param clientLink
+     *        The link to the incoming connection.
      */
-    public ClientConnection( Socket socket )
+    public ClientConnection( Link clientLink )
     {
-        conn = socket;
+        this(clientLink, null);
+    }
+
+    /**
+     * Create a new client connection which reports the lines it reads to a
+     * listener.
+     * @param clientLink
+     *        The link to the incoming connection.
+     * @param clientListener
+     *        The listener to hand received lines to, or null to print them.
+     */
+    public ClientConnection( Link clientLink, ClientListener clientListener )
+    {
+        link = clientLink;
+        listener = clientListener;
         stillValid = true;
+    }
 
-        try
+    /**
+     * Handle a line read from the client.
+     * @param line
+     *        The line of data, or null if the client has left.
+     * @return true if more lines may follow.
+     * @throws IOException
+     */
+    public boolean receive( String line ) throws IOException
+    {
+        if (line == null)
         {
-            in = new BufferedReader( new InputStreamReader(
-                conn.getInputStream() ));
+            // Client has left.
+            leave();
+            return false;
+        }
 
-            out = new PrintWriter( conn.getOutputStream(), true );
+        if (listener == null)
+        {
+            System.out.println(line);
         }
-        catch (IOException e)
+        else
         {
-            System.err.println("Failed allocating in/out.");
+            listener.lineReceived(this, line);
         }
 
+        return true;
     }
 
-    // ----------------------------------------------------------
     /**
-     * Run a new thread to manage the client connection.
+     * Close the connection after the client has left, and let the listener
+     * know.
+     * @throws IOException
      */
-    @Override
-    public void run()
+    private void leave() throws IOException
     {
-        String line;
-
-        while (true)
+        try
         {
-            try
-            {
-                line = in.readLine();
-                if (line == null)
-                {
-                    // Client has left.
-                    close();
-                    return;
-                }
-                System.out.println(line);
-            }
-            catch (IOException e)
+            close();
+        }
+        finally
+        {
+            if (listener != null)
             {
-                try
-                {
-                    close();
-                }
-                catch (IOException e1)
-                {
-                    return;
-                }
-
-                return;
+                listener.clientLeft(this);
             }
         }
-
     }
 
     /**
@@ -93,7 +103,7 @@ public class ClientConnection
      */
     public synchronized void sendData( String line )
     {
-        out.println(line);
+        link.writeLine(line);
     }
 
     /**
@@ -102,7 +112,110 @@ public class ClientConnection
      */
     public String getIPAddress()
     {
-        return conn.getInetAddress().getHostAddress();
+        return link.getHostAddress();
+    }
+
+    /**
+     * Get the raw bytes of this client's IP address.
+     * @return the address bytes, 4 for IPv4 or 16 for IPv6.
+     */
+    public byte[] getAddress()
+    {
+        return link.getAddress();
+    }
+
+    /**
+     * Get the link this client is connected through.
+     * @return the client's link.
+     */
+    public Link getLink()
+    {
+        return link;
+    }
+
+    /**
+     * Is this client connecting from this machine.
+     * @return if the client's address is a loopback address.
+     */
+    public boolean isLoopback()
+    {
+        return link.isLoopback();
+    }
+
+    /**
+     * Get the session token the server issued to this client.
+     * @return the session token, or null if none was issued.
+     */
+    public String getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    /**
+     * Set the session token the server issued to this client.
+     * @param token
+     *        The session token.
+     */
+    public void setSessionToken( String token )
+    {
+        sessionToken = token;
+    }
+
+    /**
+     * Get the time this client started waiting.
+     * @return the arrival time in milliseconds.
+     */
+    public long getArrivalTime()
+    {
+        return arrivalTime;
+    }
+
+    /**
+     * Set the time this client started waiting.
+     * @param millis
+     *        The arrival time in milliseconds.
+     */
+    public void setArrivalTime( long millis )
+    {
+        arrivalTime = millis;
+    }
+
+    /**
+     * Get this client's entry in the server's locality index.
+     * @return the entry, or null if the client isn't indexed.
+     */
+    public LocalityIndex.Entry getLocalityEntry()
+    {
+        return localityEntry;
+    }
+
+    /**
+     * Set this client's entry in the server's locality index.
+     * @param entry
+     *        The entry, or null if the client isn't indexed.
+     */
+    public void setLocalityEntry( LocalityIndex.Entry entry )
+    {
+        localityEntry = entry;
+    }
+
+    /**
+     * Get the lane this client is waiting in.
+     * @return the client's lane, or null if it isn't in one.
+     */
+    public Lane getLane()
+    {
+        return lane;
+    }
+
+    /**
+     * Set the lane this client is waiting in.
+     * @param clientLane
+     *        The client's lane.
+     */
+    public void setLane( Lane clientLane )
+    {
+        lane = clientLane;
     }
 
     /**
@@ -138,7 +251,7 @@ public class ClientConnection
      */
     public void close() throws IOException
     {
-        conn.close();
+        link.close();
         stillValid = false;
     }
 }
@@ -0,0 +1,29 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  Receives the lines a client sends to the server. The ClientConnection
+ *  thread reading from the client hands every line it reads to its listener,
+ *  and tells it when the client has left.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface ClientListener
+{
+    /**
+     * Handle a line of data sent by a client.
+     * @param client
+     *        The client which sent the line.
+     * @param line
+     *        The line of data the client sent.
+     */
+    public void lineReceived( ClientConnection client, String line );
+
+    /**
+     * Handle a client leaving, after its connection has been closed.
+     * @param client
+     *        The client which left.
+     */
+    public void clientLeft( ClientConnection client );
+}
@@ -0,0 +1,25 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  A source of time for the server. The server normally runs on the system
+ *  clock, but a simulation can drive it with a VirtualClock instead.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface Clock
+{
+    /**
+     * Get the current time in milliseconds.
+     * @return the current time in milliseconds.
+     */
+    public long currentTimeMillis();
+
+    /**
+     * Get the current time in nanoseconds, only useful for measuring
+     * elapsed time.
+     * @return the current time in nanoseconds.
+     */
+    public long nanoTime();
+}
@@ -0,0 +1,85 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  FenwickTree (a binary indexed tree) keeps a count at each index and can
+ *  change a count or sum the counts up to an index in O(log n) time. The
+ *  ValidPairQueue uses one to find how far back in the queue an item is.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class FenwickTree
+{
+    private int[] tree;
+
+    /**
+     * Create a new FenwickTree where the first few indexes start at one and
+     * the rest at zero. Built in linear time.
+     * @param capacity
+     *        How many indexes the tree holds.
+     * @param ones
+     *        How many of the first indexes start with a count of one.
+     */
+    public FenwickTree( int capacity, int ones )
+    {
+        // Index i of the array holds the sum of the counts (i - lowbit, i].
+        tree = new int[capacity + 1];
+
+        for (int i = 1; i <= capacity; i++)
+        {
+            if (i <= ones)
+            {
+                tree[i]++;
+            }
+
+            int parent = i + (i & -i);
+            if (parent <= capacity)
+            {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * Get how many indexes the tree holds.
+     * @return the capacity of the tree.
+     */
+    public int capacity()
+    {
+        return tree.length - 1;
+    }
+
+    /**
+     * Change the count at an index.
+     * @param index
+     *        The index, from 0 to capacity - 1.
+     * @param delta
+     *        How much to change the count by.
+     */
+    public void add( int index, int delta )
+    {
+        for (int i = index + 1; i < tree.length; i += i & -i)
+        {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Sum the counts from index 0 up to and including an index.
+     * @param index
+     *        The last index to include.
+     * @return the sum of the counts.
+     */
+    public int prefixSum( int index )
+    {
+        int sum = 0;
+
+        for (int i = index + 1; i > 0; i -= i & -i)
+        {
+            sum += tree[i];
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,244 @@
+// -------------------------------------------------------------------------
+/**
+ *  A matchmaking lane, such as ranked, casual or a lane for test clients and
+ *  bots. Each lane has its own queue, so clients are only ever matched with
+ *  clients in the same lane, and a weight giving its share of the matches
+ *  the LaneScheduler makes while several lanes have games waiting to start.
+ *
+ *  A lane also keeps its own metrics: how deep its queue is, how long the
+ *  client at the front has been waiting, and how long matched clients
+ *  waited on average and at most.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class Lane
+{
+    private static final int MATCHWINDOW = 64;
+
+    private String name;
+    private int weight;
+    private ValidPairQueue<ClientConnection> queue;
+    private LocalityIndex locality;
+    private RateMeter matchRate;
+
+    private int matched;
+    private long totalWait;
+    private long maxWait;
+
+    private boolean scheduled;
+    private int deficit;
+
+    /**
+     * Create a new empty lane.
+     * @param laneName
+     *        The name clients ask for the lane by.
+     * @param laneWeight
+     *        The lane's share of the matches. At least 1.
+     * @param graceMillis
+     *        How long to hold the slot of a client which has dropped.
+     * @param clock
+     *        The clock to time held slots with.
+     */
+    public Lane( String laneName, int laneWeight, long graceMillis,
+        Clock clock )
+    {
+        if (laneWeight < 1)
+        {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+
+        name = laneName;
+        weight = laneWeight;
+        queue = new ValidPairQueue<ClientConnection>(graceMillis, clock);
+        matchRate = new RateMeter(MATCHWINDOW);
+
+        // Clients whose held slots run out leave the index with the queue.
+        queue.setPurgeListener(
+            new ValidPairQueue.PurgeListener<ClientConnection>()
+            {
+                public void purged( ClientConnection client )
+                {
+                    unindex(client);
+                }
+            });
+    }
+
+    /**
+     * Get the name of the lane.
+     * @return the lane's name.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the lane's share of the matches.
+     * @return the lane's weight.
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Get the queue of clients waiting in the lane.
+     * @return the lane's queue.
+     */
+    public ValidPairQueue<ClientConnection> getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * Get the locality index of the lane's clients.
+     * @return the index, or null if not in locality mode.
+     */
+    public LocalityIndex getLocality()
+    {
+        return locality;
+    }
+
+    /**
+     * Set the locality index of the lane's clients.
+     * @param index
+     *        The index, or null to leave locality mode.
+     */
+    public void setLocality( LocalityIndex index )
+    {
+        locality = index;
+    }
+
+    /**
+     * Take a client out of the lane's locality index, if it is in it.
+     * @param client
+     *        The client to take out.
+     */
+    public void unindex( ClientConnection client )
+    {
+        if (locality != null && client.getLocalityEntry() != null)
+        {
+            locality.remove(client.getLocalityEntry());
+        }
+        client.setLocalityEntry(null);
+    }
+
+    /**
+     * Record a game being started between two of the lane's clients.
+     * @param nanos
+     *        When the game started, in nanoseconds.
+     * @param firstWait
+     *        How long the first client waited, in milliseconds.
+     * @param secondWait
+     *        How long the second client waited, in milliseconds.
+     */
+    public void recordMatch( long nanos, long firstWait, long secondWait )
+    {
+        matchRate.mark(nanos);
+        matched++;
+        totalWait += firstWait + secondWait;
+        maxWait = Math.max(maxWait, Math.max(firstWait, secondWait));
+    }
+
+    /**
+     * Get how many games per second the lane has started recently.
+     * @param nanos
+     *        The current time in nanoseconds.
+     * @return the recent rate, or 0 if it is not yet known.
+     */
+    public double matchesPerSecond( long nanos )
+    {
+        return matchRate.perSecond(nanos);
+    }
+
+    /**
+     * Get the number of clients waiting in the lane, including the slots
+     * held for clients that may come back.
+     * @return the depth of the lane's queue.
+     */
+    public int depth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Get how long the client at the front of the lane has been waiting, as
+     * of the last time the queue was purged.
+     * @param millis
+     *        The current time in milliseconds.
+     * @return the wait in milliseconds, or 0 if nobody is waiting.
+     */
+    public long oldestWaitMillis( long millis )
+    {
+        ClientConnection first = queue.front();
+
+        return (first == null ? 0 : millis - first.getArrivalTime());
+    }
+
+    /**
+     * Get the number of games started in the lane.
+     * @return the number of games.
+     */
+    public int getMatched()
+    {
+        return matched;
+    }
+
+    /**
+     * Get the mean time matched clients in the lane waited.
+     * @return the mean wait in milliseconds.
+     */
+    public double getMeanWaitMillis()
+    {
+        return (matched == 0 ? 0 : totalWait / (2.0 * matched));
+    }
+
+    /**
+     * Get the longest time a matched client in the lane waited.
+     * @return the longest wait in milliseconds.
+     */
+    public long getMaxWaitMillis()
+    {
+        return maxWait;
+    }
+
+    /**
+     * Is the lane in the LaneScheduler's rotation.
+     * @return if the lane is scheduled.
+     */
+    boolean isScheduled()
+    {
+        return scheduled;
+    }
+
+    /**
+     * Put the lane in or take it out of the LaneScheduler's rotation.
+     * @param inRotation
+     *        Whether the lane is scheduled.
+     */
+    void setScheduled( boolean inRotation )
+    {
+        scheduled = inRotation;
+    }
+
+    /**
+     * Get how many matches the lane may still make in its current turn.
+     * @return the lane's deficit.
+     */
+    int getDeficit()
+    {
+        return deficit;
+    }
+
+    /**
+     * Set how many matches the lane may still make in its current turn.
+     * @param matches
+     *        The lane's deficit.
+     */
+    void setDeficit( int matches )
+    {
+        deficit = matches;
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayDeque;
+
+// -------------------------------------------------------------------------
+/**
+ *  LaneScheduler shares out the server's matches between the lanes with
+ *  games waiting to start, in proportion to their weights, so that a flood
+ *  of clients in one lane can't hold up the others.
+ *
+ *  It uses deficit round robin. Only lanes with a match ready are kept in
+ *  the rotation, and the lane at the front may make as many matches as its
+ *  weight before it goes to the back. Since every weight is at least one,
+ *  picking the next lane and taking an emptied lane out of the rotation
+ *  both take constant time, however many lanes there are.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class LaneScheduler
+{
+    private ArrayDeque<Lane> rotation;
+
+    /**
+     * Create a new LaneScheduler with no lanes in the rotation.
+     */
+    public LaneScheduler()
+    {
+        rotation = new ArrayDeque<Lane>();
+    }
+
+    /**
+     * Put a lane with a match ready into the rotation, if it isn't already.
+     * @param lane
+     *        The lane.
+     */
+    public void ready( Lane lane )
+    {
+        if (lane.isScheduled())
+        {
+            return;
+        }
+
+        lane.setScheduled(true);
+        lane.setDeficit(0);
+        rotation.addLast(lane);
+
+        if (rotation.size() == 1)
+        {
+            startTurn(lane);
+        }
+    }
+
+    /**
+     * Get the lane to make the next match in. The caller makes the match
+     * and then calls served.
+     * @return the lane, or null if no lane has a match ready.
+     */
+    public Lane next()
+    {
+        Lane lane = rotation.peekFirst();
+
+        if (lane != null && lane.getDeficit() < 1)
+        {
+            // The lane has used up its turn.
+            rotation.addLast(rotation.pollFirst());
+            lane = rotation.peekFirst();
+            startTurn(lane);
+        }
+
+        return lane;
+    }
+
+    /**
+     * Record that a match was made in the lane returned by next.
+     * @param lane
+     *        The lane.
+     * @param stillReady
+     *        Whether the lane has another match ready.
+     */
+    public void served( Lane lane, boolean stillReady )
+    {
+        lane.setDeficit(lane.getDeficit() - 1);
+
+        if (!stillReady)
+        {
+            // The lane served is the one at the front.
+            rotation.remove(lane);
+            lane.setScheduled(false);
+            lane.setDeficit(0);
+
+            if (!rotation.isEmpty())
+            {
+                startTurn(rotation.peekFirst());
+            }
+        }
+    }
+
+    /**
+     * Get the number of lanes in the rotation.
+     * @return the number of lanes with a match ready.
+     */
+    public int readyCount()
+    {
+        return rotation.size();
+    }
+
+    /**
+     * Give the lane now at the front of the rotation its turn.
+     * @param lane
+     *        The lane at the front.
+     */
+    private void startTurn( Lane lane )
+    {
+        lane.setDeficit(lane.getDeficit() + lane.getWeight());
+    }
+}
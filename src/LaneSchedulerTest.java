@@ -0,0 +1,112 @@
+import student.TestCase;
+
+// -------------------------------------------------------------------------
+/**
+ *  TestSuite for the LaneScheduler
+ *  Test that lanes get matches in proportion to their weights, and that
+ *  lanes come and go from the rotation as they have games ready.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class LaneSchedulerTest
+    extends TestCase
+{
+    private LaneScheduler scheduler;
+    private Lane ranked;
+    private Lane casual;
+    private Lane test;
+
+    /**
+     * Setup method called before all tests.
+     */
+    public void setUp()
+    {
+        Clock clock = new VirtualClock();
+        scheduler = new LaneScheduler();
+        ranked = new Lane("ranked", 3, 0, clock);
+        casual = new Lane("casual", 2, 0, clock);
+        test = new Lane("test", 1, 0, clock);
+    }
+
+    /**
+     * Test that lanes which always have games ready share the matches by
+     * their weights.
+     */
+    public void testWeightedShares()
+    {
+        scheduler.ready(ranked);
+        scheduler.ready(casual);
+        scheduler.ready(test);
+        scheduler.ready(ranked);
+        assertEquals(3, scheduler.readyCount());
+
+        assertEquals("rrrcctrrrcct", serve(12));
+    }
+
+    /**
+     * Test that a lane leaves the rotation once it has no game ready, and
+     * that one coming back waits behind the others.
+     */
+    public void testReadyAndDone()
+    {
+        assertNull(scheduler.next());
+
+        scheduler.ready(ranked);
+        scheduler.ready(test);
+        assertEquals(ranked, scheduler.next());
+        scheduler.served(ranked, false);
+        assertEquals(1, scheduler.readyCount());
+
+        // The test lane gets its turn straight away.
+        scheduler.ready(ranked);
+        assertEquals("trrrtr", serve(6));
+
+        // Lanes leave one after another.
+        assertEquals(ranked, scheduler.next());
+        scheduler.served(ranked, false);
+        assertEquals(test, scheduler.next());
+        scheduler.served(test, false);
+        assertEquals(0, scheduler.readyCount());
+        assertNull(scheduler.next());
+    }
+
+    /**
+     * Test that a lane can't be made with a weight under 1.
+     */
+    public void testBadWeight()
+    {
+        boolean caught = false;
+        try
+        {
+            new Lane("none", 0, 0, new VirtualClock());
+        }
+        catch (IllegalArgumentException e)
+        {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+
+    /**
+     * Make a number of matches, with every lane still having a game ready
+     * after each.
+     * @param matches
+     *        How many matches to make.
+     * @return the first letter of the name of each lane picked.
+     */
+    private String serve( int matches )
+    {
+        StringBuilder order = new StringBuilder();
+
+        for (int i = 0; i < matches; i++)
+        {
+            Lane lane = scheduler.next();
+            order.append(lane.getName().charAt(0));
+            scheduler.served(lane, true);
+        }
+
+        return order.toString();
+    }
+}
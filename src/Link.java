@@ -0,0 +1,46 @@
+import java.io.IOException;
+
+// -------------------------------------------------------------------------
+/**
+ *  A line based connection to a single client, as handed out by a
+ *  Transport. This is what a ClientConnection talks to the client through.
+ *  Lines from the client are not read through the link; the Transport
+ *  hands them to the ClientConnection's receive method as they arrive.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface Link
+{
+    /**
+     * Send a line to the client.
+     * @param line
+     *        The line of data to send.
+     */
+    public void writeLine( String line );
+
+    /**
+     * Get the raw bytes of the client's address.
+     * @return the address bytes, 4 for IPv4 or 16 for IPv6.
+     */
+    public byte[] getAddress();
+
+    /**
+     * Get the client's address in String form.
+     * @return the client's address.
+     */
+    public String getHostAddress();
+
+    /**
+     * Is the client on this machine.
+     * @return if the client's address is a loopback address.
+     */
+    public boolean isLoopback();
+
+    /**
+     * Close the link.
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,283 @@
+import java.util.TreeSet;
+
+// -------------------------------------------------------------------------
+/**
+ *  LocalityIndex finds, for a waiting client, the other waiting client whose
+ *  address shares the longest prefix with its own, within the same region.
+ *
+ *  The clients are kept in a balanced tree sorted by region and then by
+ *  address bits. Sorted that way, the address sharing the longest prefix
+ *  with a client is always one of its nearest neighbours in the tree, so
+ *  adding, removing and finding the nearest client all take O(log n) time
+ *  in the number of waiting clients.
+ *
+ *  Clients from the exact same address are never each other's nearest, as
+ *  they would be the same host. The server takes clients out while their
+ *  slots are held, and entries for clients which have left the queue or
+ *  dropped without the server noticing yet are dropped as lookups run into
+ *  them, so no entry is walked past more than once.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class LocalityIndex
+{
+    private RegionTable regions;
+    private int minShared;
+    private TreeSet<Entry> entries;
+    private long nextSeq;
+
+    /**
+     * Create a new empty LocalityIndex.
+     * @param table
+     *        The table of regions, or null to put everyone in one region.
+     * @param minSharedBits
+     *        How many leading address bits two clients must share to be
+     *        considered near each other.
+     */
+    public LocalityIndex( RegionTable table, int minSharedBits )
+    {
+        regions = table;
+        minShared = minSharedBits;
+        entries = new TreeSet<Entry>();
+        nextSeq = 0;
+    }
+
+    /**
+     * Add a waiting client to the index.
+     * @param slot
+     *        The client's slot in the queue.
+     * @return the client's entry, for removing it later.
+     */
+    public Entry add( ValidPairQueue.Slot<ClientConnection> slot )
+    {
+        byte[] address = slot.getItem().getAddress();
+        int region = (regions == null ? 0 : regions.regionOf(address));
+
+        Entry entry = new Entry(region, address, nextSeq++, slot);
+        entries.add(entry);
+
+        return entry;
+    }
+
+    /**
+     * Remove a client from the index.
+     * @param entry
+     *        The client's entry.
+     */
+    public void remove( Entry entry )
+    {
+        entries.remove(entry);
+    }
+
+    /**
+     * Get the number of entries in the index.
+     * @return the number of entries.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Find the waiting client nearest to a client in the index: in the same
+     * region, sharing at least the minimum number of address bits, and of
+     * those the one sharing the most, the longest waiting on a tie.
+     * @param entry
+     *        The entry of the client to find a partner for.
+     * @return the slot of the nearest client, or null if none is near.
+     */
+    public ValidPairQueue.Slot<ClientConnection> nearest( Entry entry )
+    {
+        Entry below = usable(entries.lower(entry.bound(Long.MIN_VALUE)),
+            entry, false);
+        Entry above = usable(entries.higher(entry.bound(Long.MAX_VALUE)),
+            entry, true);
+
+        int belowShared = (below == null ? -1 : entry.sharedBits(below));
+        int aboveShared = (above == null ? -1 : entry.sharedBits(above));
+
+        Entry best = below;
+        if (aboveShared > belowShared ||
+            (aboveShared == belowShared && above != null &&
+            above.seq < below.seq))
+        {
+            best = above;
+        }
+
+        return (best == null ? null : best.slot);
+    }
+
+    /**
+     * Walk away from a client from a starting entry until reaching a client
+     * which can be paired with it, dropping entries of clients which have
+     * left or dropped on the way. Stops at the edge of the region, or once
+     * too few bits are shared, as walking further only shares fewer.
+     * @param start
+     *        The entry to start at.
+     * @param from
+     *        The entry of the client looking for a partner.
+     * @param up
+     *        Whether to walk up the tree instead of down.
+     * @return the entry found, or null if there is none.
+     */
+    private Entry usable( Entry start, Entry from, boolean up )
+    {
+        Entry current = start;
+
+        while (current != null && current.region == from.region &&
+            from.sharedBits(current) >= minShared)
+        {
+            Entry next = (up ? entries.higher(current) :
+                entries.lower(current));
+
+            if (current.slot.isQueued() && current.slot.getItem().isValid())
+            {
+                return current;
+            }
+
+            // A dropped client is put back in if it resumes.
+            entries.remove(current);
+
+            current = next;
+        }
+
+        return null;
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A client in the index, sorted by region, then by address, then by
+     *  when it was added.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    public static class Entry
+        implements Comparable<Entry>
+    {
+        private int region;
+        private int bits;
+        private long hi;
+        private long lo;
+        private long seq;
+        private ValidPairQueue.Slot<ClientConnection> slot;
+
+        /**
+         * Create a new entry.
+         * @param regionNumber
+         *        The region the client is in.
+         * @param address
+         *        The raw bytes of the client's address.
+         * @param order
+         *        When the client was added.
+         * @param clientSlot
+         *        The client's slot in the queue.
+         */
+        private Entry( int regionNumber, byte[] address, long order,
+            ValidPairQueue.Slot<ClientConnection> clientSlot )
+        {
+            region = regionNumber;
+            bits = address.length * 8;
+            seq = order;
+            slot = clientSlot;
+
+            // Line the address bits up from the top of hi.
+            for (int i = 0; i < address.length; i++)
+            {
+                long b = address[i] & 0xff;
+                if (i < 8)
+                {
+                    hi |= b << (56 - 8 * i);
+                }
+                else
+                {
+                    lo |= b << (56 - 8 * (i - 8));
+                }
+            }
+        }
+
+        /**
+         * Make an entry for the same region and address, sorting before or
+         * after every real entry for that address.
+         * @param order
+         *        Long.MIN_VALUE or Long.MAX_VALUE.
+         * @return the bounding entry.
+         */
+        private Entry bound( long order )
+        {
+            Entry edge = new Entry(region, new byte[0], order, null);
+            edge.bits = bits;
+            edge.hi = hi;
+            edge.lo = lo;
+            return edge;
+        }
+
+        /**
+         * Count the leading address bits shared with another entry.
+         * @param other
+         *        The other entry.
+         * @return the number of shared bits, 0 for different kinds of
+         *         address.
+         */
+        public int sharedBits( Entry other )
+        {
+            if (bits != other.bits)
+            {
+                return 0;
+            }
+
+            int shared = (hi != other.hi ?
+                Long.numberOfLeadingZeros(hi ^ other.hi) :
+                64 + Long.numberOfLeadingZeros(lo ^ other.lo));
+
+            return Math.min(shared, bits);
+        }
+
+        /**
+         * Order entries by region, kind of address, address bits and then
+         * when they were added.
+         * @param other
+         *        The entry to compare with.
+         * @return negative, zero or positive as this entry comes first.
+         */
+        public int compareTo( Entry other )
+        {
+            if (region != other.region)
+            {
+                return (region < other.region ? -1 : 1);
+            }
+            if (bits != other.bits)
+            {
+                return (bits < other.bits ? -1 : 1);
+            }
+            if (hi != other.hi)
+            {
+                return compareUnsigned(hi, other.hi);
+            }
+            if (lo != other.lo)
+            {
+                return compareUnsigned(lo, other.lo);
+            }
+            if (seq != other.seq)
+            {
+                return (seq < other.seq ? -1 : 1);
+            }
+            return 0;
+        }
+
+        /**
+         * Compare two longs as if they were unsigned.
+         * @param a
+         *        The first value.
+         * @param b
+         *        The second value.
+         * @return negative or positive as a is smaller or larger.
+         */
+        private static int compareUnsigned( long a, long b )
+        {
+            return ((a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE) ? -1 : 1);
+        }
+    }
+}
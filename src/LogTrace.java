@@ -0,0 +1,109 @@
+import java.io.PrintStream;
+
+// -------------------------------------------------------------------------
+/**
+ *  A MatchTrace which writes each event as a line of text, in the form
+ *  "event time nanos depth [scanned]", where time is when the event was
+ *  written in milliseconds. The lines are easy to load into a spreadsheet
+ *  or script to look at percentiles.
+ *
+ *  Launching the server with -Dnetbreak.trace=true traces to System.err.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class LogTrace
+    implements MatchTrace
+{
+    private PrintStream out;
+
+    /**
+     * Create a new LogTrace.
+     * @param stream
+     *        The stream to write events to.
+     */
+    public LogTrace( PrintStream stream )
+    {
+        out = stream;
+    }
+
+    /**
+     * Write an accepted event.
+     * @param nanos
+     *        How long the accept waited, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue.
+     */
+    public void accepted( long nanos, int depth )
+    {
+        write("accept", nanos, depth, "");
+    }
+
+    /**
+     * Write an enqueued event.
+     * @param nanos
+     *        How long the push took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void enqueued( long nanos, int depth )
+    {
+        write("enqueue", nanos, depth, "");
+    }
+
+    /**
+     * Write a purged event.
+     * @param nanos
+     *        How long the scan took, in nanoseconds.
+     * @param scanned
+     *        How many clients were looked at.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void purged( long nanos, int scanned, int depth )
+    {
+        write("purge", nanos, depth, " " + scanned);
+    }
+
+    /**
+     * Write a matched event.
+     * @param nanos
+     *        How long finding and taking the pair took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void matched( long nanos, int depth )
+    {
+        write("match", nanos, depth, "");
+    }
+
+    /**
+     * Write a notified event.
+     * @param nanos
+     *        How long sending took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue.
+     */
+    public void notified( long nanos, int depth )
+    {
+        write("notify", nanos, depth, "");
+    }
+
+    /**
+     * Write one event line.
+     * @param event
+     *        The name of the event.
+     * @param nanos
+     *        How long the event took, in nanoseconds.
+     * @param depth
+     *        The queue depth.
+     * @param extra
+     *        Anything else to put at the end of the line.
+     */
+    private void write( String event, long nanos, int depth, String extra )
+    {
+        out.println(event + " " + System.currentTimeMillis() + " " + nanos +
+            " " + depth + extra);
+    }
+}
@@ -0,0 +1,593 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// -------------------------------------------------------------------------
+/**
+ *  MatchSimulator pushes synthetic clients through a real NetBreakServer,
+ *  using a MemoryTransport and a VirtualClock in place of sockets and the
+ *  system clock. Clients arrive at random, send heartbeats while they wait,
+ *  and some drop their connection and come back with their session token.
+ *  Some of those that drop never come back, so their held slots run out and
+ *  are purged.
+ *
+ *  So that clients wait long enough for heartbeats and drops to happen, the
+ *  server can be run in locality mode with the hosts spread over a number of
+ *  regions: a client then waits for someone from its own region, or for the
+ *  10 second deadline. The server's tick is called every second of virtual
+ *  time, as its own thread would.
+ *
+ *  Everything runs on one thread from a seeded Random, so a run with the
+ *  same settings always makes the same matches. That makes it useful both
+ *  for measuring how fast the matching code is and for checking that a
+ *  change hasn't altered who gets matched with whom.
+ *
+ *  Run with `java MatchSimulator [clients] [seed]`.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class MatchSimulator
+{
+    private static final long SECOND = 1000000000L;
+    private static final long PINGINTERVAL = 5 * SECOND;
+    private static final long RECONNECTDELAY = 3 * SECOND;
+    private static final long TICKINTERVAL = SECOND;
+    private static final long DEADLINE = 10000;
+    private static final long DRAINTIME = 20 * SECOND;
+
+    private static final int ARRIVE = 0;
+    private static final int DROP = 1;
+    private static final int PING = 2;
+    private static final int TICK = 3;
+
+    private VirtualClock clock;
+    private MemoryTransport transport;
+    private NetBreakServer server;
+    private Random random;
+    private PriorityQueue<Event> events;
+    private Map<MemoryTransport.MemoryLink, SimClient> connected;
+    private long sequence;
+    private long lastArrival;
+
+    private int arrivalsLeft;
+    private double arrivalsPerSecond;
+    private int hosts;
+    private double dropChance;
+    private double abandonChance;
+
+    private int matched;
+    private int rejected;
+    private int dropped;
+    private int abandoned;
+    private int resumed;
+    private int pongs;
+    private long totalWait;
+    private long maxWait;
+
+    /**
+     * Run a simulation from the command line and print the results.
+     * @param argv The number of clients and the random seed, both optional.
+     */
+    public static void main( String[] argv )
+    {
+        int clientCount = (argv.length > 0 ? Integer.valueOf(argv[0]) :
+            100000);
+        long seed = (argv.length > 1 ? Long.valueOf(argv[1]) : 2114);
+
+        MatchSimulator sim = new MatchSimulator(seed, clientCount, 50,
+            clientCount / 10 + 1, 0.05, 0.2, 256);
+
+        long start = System.nanoTime();
+        sim.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("clients:   " + clientCount);
+        System.out.println("matched:   " + sim.getMatched());
+        System.out.println("rejected:  " + sim.getRejected());
+        System.out.println("dropped:   " + sim.getDropped());
+        System.out.println("abandoned: " + sim.getAbandoned());
+        System.out.println("resumed:   " + sim.getResumed());
+        System.out.println("pings:     " + sim.getPongs());
+        System.out.println("waiting:   " + sim.getWaiting());
+        System.out.println("indexed:   " + sim.getIndexed());
+        System.out.println("mean wait: " + sim.getMeanWaitMillis() + " ms");
+        System.out.println("max wait:  " + sim.getMaxWaitMillis() + " ms");
+        System.out.println("run time:  " + seconds + " s (" +
+            (long)(clientCount / seconds) + " clients/s)");
+    }
+
+    /**
+     * Create a new simulation.
+     * @param seed
+     *        The seed for all the random choices.
+     * @param clientCount
+     *        How many clients arrive over the simulation.
+     * @param perSecond
+     *        How many clients arrive per second of virtual time.
+     * @param hostCount
+     *        How many distinct addresses the clients come from.
+     * @param dropRate
+     *        The chance that a waiting client drops.
+     * @param abandonRate
+     *        The chance that a client which drops never comes back.
+     * @param regionCount
+     *        How many regions the hosts are spread over in locality mode,
+     *        or 0 to match first come first served.
+     */
+    public MatchSimulator( long seed, int clientCount, double perSecond,
+        int hostCount, double dropRate, double abandonRate,
+        final int regionCount )
+    {
+        clock = new VirtualClock();
+        transport = new MemoryTransport();
+        server = new NetBreakServer(transport, clock);
+        random = new Random(seed);
+        events = new PriorityQueue<Event>();
+        connected = new HashMap<MemoryTransport.MemoryLink, SimClient>();
+        sequence = 0;
+
+        arrivalsLeft = clientCount;
+        arrivalsPerSecond = perSecond;
+        hosts = hostCount;
+        dropChance = dropRate;
+        abandonChance = abandonRate;
+
+        if (regionCount > 0)
+        {
+            server.setLocality(new RegionTable()
+            {
+                public int regionOf( byte[] address )
+                {
+                    return host(address) % regionCount;
+                }
+            }, 0, DEADLINE);
+        }
+    }
+
+    /**
+     * Run the simulation until every client has arrived and nothing more
+     * can happen.
+     */
+    public void run()
+    {
+        scheduleArrival();
+        schedule(TICKINTERVAL, TICK, null);
+
+        while (!events.isEmpty())
+        {
+            Event event = events.poll();
+            clock.advanceTo(event.time);
+
+            if (event.type == ARRIVE)
+            {
+                arrive(event.client);
+            }
+            else if (event.type == DROP)
+            {
+                drop(event.client);
+            }
+            else if (event.type == PING)
+            {
+                ping(event.client);
+            }
+            else
+            {
+                tick();
+            }
+
+            collectClosed();
+        }
+    }
+
+    /**
+     * Bring a client into the server, either a new one or one coming back
+     * after dropping.
+     * @param client
+     *        The arriving client, or null for a new one.
+     */
+    private void arrive( SimClient client )
+    {
+        if (client == null)
+        {
+            client = new SimClient(address(random.nextInt(hosts)),
+                clock.nanoTime());
+            scheduleArrival();
+        }
+
+        lastArrival = clock.nanoTime();
+        String oldToken = client.token;
+        client.link = transport.connect(client.address);
+        connected.put(client.link, client);
+        if (oldToken != null)
+        {
+            client.link.send("RESUME " + oldToken);
+        }
+
+        server.acceptNext();
+        read(client);
+
+        if (oldToken != null && oldToken.equals(client.token))
+        {
+            resumed++;
+        }
+
+        if (client.link.isOpen())
+        {
+            if (!client.dropped && random.nextDouble() < dropChance)
+            {
+                schedule(clock.nanoTime() + exponential(SECOND), DROP, client);
+            }
+            schedule(clock.nanoTime() + PINGINTERVAL, PING, client);
+        }
+    }
+
+    /**
+     * Drop a waiting client's connection and have it come back shortly,
+     * unless it gives up waiting altogether.
+     * @param client
+     *        The client to drop.
+     */
+    private void drop( SimClient client )
+    {
+        if (!client.link.isOpen())
+        {
+            return;
+        }
+
+        connected.remove(client.link);
+        client.link.hangUp();
+        client.dropped = true;
+        dropped++;
+
+        if (random.nextDouble() < abandonChance)
+        {
+            abandoned++;
+            return;
+        }
+        schedule(clock.nanoTime() + RECONNECTDELAY, ARRIVE, client);
+    }
+
+    /**
+     * Send a heartbeat from a waiting client.
+     * @param client
+     *        The client sending the heartbeat.
+     */
+    private void ping( SimClient client )
+    {
+        if (!client.link.isOpen())
+        {
+            return;
+        }
+
+        client.link.send("PING");
+        read(client);
+
+        if (arrivalsLeft > 0)
+        {
+            schedule(clock.nanoTime() + PINGINTERVAL, PING, client);
+        }
+    }
+
+    /**
+     * Have the server make any games which have become ready, and keep
+     * ticking while anything else is still to happen, and for long enough
+     * after the last arrival for everyone left to reach the deadline.
+     */
+    private void tick()
+    {
+        server.tick();
+
+        if (!events.isEmpty() || clock.nanoTime() - lastArrival < DRAINTIME)
+        {
+            schedule(clock.nanoTime() + TICKINTERVAL, TICK, null);
+        }
+    }
+
+    /**
+     * Go through the links the server has closed, and count the clients
+     * which were matched or turned away.
+     */
+    private void collectClosed()
+    {
+        MemoryTransport.MemoryLink link = transport.pollClosed();
+
+        while (link != null)
+        {
+            SimClient client = connected.remove(link);
+            if (client != null)
+            {
+                read(client);
+                if (client.partner != null)
+                {
+                    long wait = clock.nanoTime() - client.arrived;
+                    matched++;
+                    totalWait += wait;
+                    maxWait = Math.max(maxWait, wait);
+                }
+                else
+                {
+                    rejected++;
+                }
+            }
+
+            link = transport.pollClosed();
+        }
+    }
+
+    /**
+     * Read the lines the server has sent to a client.
+     * @param client
+     *        The client to read for.
+     */
+    private void read( SimClient client )
+    {
+        List<String> lines = client.link.getReceived();
+
+        for (String line : lines)
+        {
+            if (line.startsWith("WAIT "))
+            {
+                client.token = line.substring("WAIT ".length());
+            }
+            else if (line.equals("PONG"))
+            {
+                pongs++;
+            }
+            else
+            {
+                client.partner = line;
+            }
+        }
+
+        lines.clear();
+    }
+
+    /**
+     * Schedule the next new client to arrive, if there are any left.
+     */
+    private void scheduleArrival()
+    {
+        if (arrivalsLeft == 0)
+        {
+            return;
+        }
+
+        arrivalsLeft--;
+        schedule(clock.nanoTime() +
+            exponential((long)(SECOND / arrivalsPerSecond)), ARRIVE, null);
+    }
+
+    /**
+     * Schedule an event.
+     * @param time
+     *        When the event happens, in nanoseconds.
+     * @param type
+     *        The kind of event.
+     * @param client
+     *        The client the event happens to.
+     */
+    private void schedule( long time, int type, SimClient client )
+    {
+        events.add(new Event(time, sequence++, type, client));
+    }
+
+    /**
+     * Pick a random time with an exponential distribution.
+     * @param mean
+     *        The mean time in nanoseconds.
+     * @return the random time in nanoseconds.
+     */
+    private long exponential( long mean )
+    {
+        return (long)(-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    /**
+     * Turn a host number into an address, staying clear of loopback.
+     * @param host
+     *        The host number.
+     * @return the address bytes of the host.
+     */
+    private static byte[] address( int host )
+    {
+        return new byte[] { (byte)(0x80 | ((host >>> 24) & 0x3f)),
+            (byte)(host >>> 16), (byte)(host >>> 8), (byte)host };
+    }
+
+    /**
+     * Turn an address made by address back into its host number.
+     * @param address
+     *        The address bytes.
+     * @return the host number.
+     */
+    private static int host( byte[] address )
+    {
+        return ((address[0] & 0x3f) << 24) | ((address[1] & 0xff) << 16) |
+            ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+    }
+
+    /**
+     * Get the number of clients which were matched.
+     * @return the number of matched clients.
+     */
+    public int getMatched()
+    {
+        return matched;
+    }
+
+    /**
+     * Get the number of connections turned away by the rate limit.
+     * @return the number of rejected connections.
+     */
+    public int getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * Get the number of waiting clients which dropped their connection.
+     * @return the number of drops.
+     */
+    public int getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Get the number of heartbeats the server answered.
+     * @return the number of PONGs received.
+     */
+    public int getPongs()
+    {
+        return pongs;
+    }
+
+    /**
+     * Get the number of clients which dropped and never came back.
+     * @return the number of abandoned sessions.
+     */
+    public int getAbandoned()
+    {
+        return abandoned;
+    }
+
+    /**
+     * Get the number of clients still waiting at the end, including held
+     * slots which haven't been purged yet.
+     * @return the number of waiting clients.
+     */
+    public int getWaiting()
+    {
+        return server.waitingCount();
+    }
+
+    /**
+     * Get the number of locality index entries left at the end, which
+     * should be no more than the clients still waiting.
+     * @return the number of entries over every lane.
+     */
+    public int getIndexed()
+    {
+        int entries = 0;
+        for (Lane lane : server.getLanes())
+        {
+            if (lane.getLocality() != null)
+            {
+                entries += lane.getLocality().size();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the number of clients which came back and got their slot back.
+     * @return the number of resumed sessions.
+     */
+    public int getResumed()
+    {
+        return resumed;
+    }
+
+    /**
+     * Get the mean virtual time matched clients spent waiting.
+     * @return the mean wait in milliseconds.
+     */
+    public double getMeanWaitMillis()
+    {
+        return (matched == 0 ? 0 : totalWait / 1e6 / matched);
+    }
+
+    /**
+     * Get the longest virtual time a matched client spent waiting.
+     * @return the longest wait in milliseconds.
+     */
+    public double getMaxWaitMillis()
+    {
+        return maxWait / 1e6;
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A simulated client.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private static class SimClient
+    {
+        private byte[] address;
+        private long arrived;
+        private MemoryTransport.MemoryLink link;
+        private String token;
+        private String partner;
+        private boolean dropped;
+
+        /**
+         * Create a new simulated client.
+         * @param hostAddress
+         *        The address the client connects from.
+         * @param arrivedAt
+         *        When the client first arrived, in nanoseconds.
+         */
+        public SimClient( byte[] hostAddress, long arrivedAt )
+        {
+            address = hostAddress;
+            arrived = arrivedAt;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  Something happening to a client at a point in virtual time. Events at
+     *  the same time happen in the order they were scheduled.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private static class Event
+        implements Comparable<Event>
+    {
+        private long time;
+        private long seq;
+        private int type;
+        private SimClient client;
+
+        /**
+         * Create a new event.
+         * @param when
+         *        When the event happens, in nanoseconds.
+         * @param order
+         *        The order the event was scheduled in.
+         * @param kind
+         *        The kind of event.
+         * @param who
+         *        The client the event happens to.
+         */
+        public Event( long when, long order, int kind, SimClient who )
+        {
+            time = when;
+            seq = order;
+            type = kind;
+            client = who;
+        }
+
+        /**
+         * Order events by time, then by the order they were scheduled.
+         * @param other
+         *        The event to compare with.
+         * @return negative, zero or positive as this event comes first.
+         */
+        public int compareTo( Event other )
+        {
+            if (time != other.time)
+            {
+                return (time < other.time ? -1 : 1);
+            }
+            return (seq < other.seq ? -1 : (seq == other.seq ? 0 : 1));
+        }
+    }
+}
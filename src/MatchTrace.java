@@ -0,0 +1,64 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  Receives timing events from the hot path of the server: accepting a
+ *  client, putting it in the queue, purging invalid clients from the queue,
+ *  making a game and telling the matched clients. Each event carries how
+ *  long it took and how deep the queue was afterwards.
+ *
+ *  Tracing is off unless a MatchTrace is set on the server, in which case
+ *  the only cost on the hot path is a check for null.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface MatchTrace
+{
+    /**
+     * A client was accepted from the transport.
+     * @param nanos
+     *        How long the accept waited, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue.
+     */
+    public void accepted( long nanos, int depth );
+
+    /**
+     * A client was put in the queue.
+     * @param nanos
+     *        How long the push took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void enqueued( long nanos, int depth );
+
+    /**
+     * The queue was scanned for invalid clients.
+     * @param nanos
+     *        How long the scan took, in nanoseconds.
+     * @param scanned
+     *        How many clients were looked at.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void purged( long nanos, int scanned, int depth );
+
+    /**
+     * A pair of clients was taken off the queue for a game.
+     * @param nanos
+     *        How long finding and taking the pair took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue afterwards.
+     */
+    public void matched( long nanos, int depth );
+
+    /**
+     * The clients in a new game were sent each other's addresses.
+     * @param nanos
+     *        How long sending took, in nanoseconds.
+     * @param depth
+     *        The number of clients in the queue.
+     */
+    public void notified( long nanos, int depth );
+}
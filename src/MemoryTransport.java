@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+// -------------------------------------------------------------------------
+/**
+ *  A Transport which keeps everything in memory, so that the server can be
+ *  driven without any sockets or threads. Clients are created with connect,
+ *  and the server picks them up the next time it accepts.
+ *
+ *  No threads are started for the clients. Lines a client sends are handed
+ *  to the server as they are sent, on the caller's thread, which keeps a
+ *  test or a simulation entirely deterministic.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class MemoryTransport
+    implements Transport
+{
+    private LinkedList<MemoryLink> pending;
+    private LinkedList<MemoryLink> closed;
+
+    /**
+     * Create a new MemoryTransport with no clients.
+     */
+    public MemoryTransport()
+    {
+        pending = new LinkedList<MemoryLink>();
+        closed = new LinkedList<MemoryLink>();
+    }
+
+    /**
+     * Connect a new client. The server will pick it up the next time it
+     * accepts a client.
+     * @param address
+     *        The raw bytes of the client's address.
+     * @return the client's end of the link.
+     */
+    public MemoryLink connect( byte[] address )
+    {
+        MemoryLink link = new MemoryLink(this, address);
+        pending.add(link);
+        return link;
+    }
+
+    /**
+     * Accept the longest waiting client.
+     * @return the link to the client, or null if none are waiting.
+     */
+    public Link accept()
+    {
+        return pending.poll();
+    }
+
+    /**
+     * Start handing lines from a client to the server.
+     * @param client
+     *        The client to read from.
+     */
+    public void start( ClientConnection client )
+    {
+        ((MemoryLink)client.getLink()).attach(client);
+    }
+
+    /**
+     * Stop accepting clients, dropping those that haven't been accepted yet.
+     */
+    public void close()
+    {
+        pending.clear();
+    }
+
+    /**
+     * Get the next link which the server has closed.
+     * @return the next closed link, or null if there are none.
+     */
+    public MemoryLink pollClosed()
+    {
+        return closed.poll();
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A Link kept in memory. The server side uses it as any other Link,
+     *  while the client side sends lines with send, leaves with hangUp, and
+     *  reads what the server sent with getReceived.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    public static class MemoryLink
+        implements Link
+    {
+        private MemoryTransport transport;
+        private byte[] address;
+        private String host;
+        private boolean loopback;
+        private ClientConnection client;
+        private LinkedList<String> inbound;
+        private List<String> received;
+        private boolean open;
+
+        /**
+         * Create a new link for a client.
+         * @param owner
+         *        The transport the link belongs to.
+         * @param addressBytes
+         *        The raw bytes of the client's address.
+         */
+        public MemoryLink( MemoryTransport owner, byte[] addressBytes )
+        {
+            transport = owner;
+            address = addressBytes.clone();
+            inbound = new LinkedList<String>();
+            received = new ArrayList<String>(2);
+            open = true;
+
+            try
+            {
+                InetAddress inet = InetAddress.getByAddress(address);
+                host = inet.getHostAddress();
+                loopback = inet.isLoopbackAddress();
+            }
+            catch (UnknownHostException e)
+            {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Send a line from the client to the server.
+         * @param line
+         *        The line of data to send.
+         */
+        public void send( String line )
+        {
+            if (!open)
+            {
+                return;
+            }
+
+            if (client == null)
+            {
+                inbound.add(line);
+                return;
+            }
+
+            deliver(line);
+        }
+
+        /**
+         * Leave as the client, as if the connection had dropped.
+         */
+        public void hangUp()
+        {
+            if (!open)
+            {
+                return;
+            }
+
+            open = false;
+            if (client != null)
+            {
+                deliver(null);
+            }
+        }
+
+        /**
+         * Get the lines the server has sent to the client.
+         * @return the lines received so far.
+         */
+        public List<String> getReceived()
+        {
+            return received;
+        }
+
+        /**
+         * Is the link still open.
+         * @return if neither side has closed the link.
+         */
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        /**
+         * Attach the server's client to this link, and hand it any lines
+         * sent before it was accepted, or tell it the client has left if it
+         * hung up before then.
+         * @param connection
+         *        The server's connection to the client.
+         */
+        private void attach( ClientConnection connection )
+        {
+            client = connection;
+
+            if (!open)
+            {
+                deliver(null);
+                return;
+            }
+
+            while (open && !inbound.isEmpty())
+            {
+                deliver(inbound.poll());
+            }
+        }
+
+        /**
+         * Hand a line to the server's client.
+         * @param line
+         *        The line, or null if the client has left.
+         */
+        private void deliver( String line )
+        {
+            try
+            {
+                client.receive(line);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error closing connection.");
+            }
+        }
+
+        /**
+         * Send a line from the server to the client.
+         * @param line
+         *        The line of data to send.
+         */
+        public void writeLine( String line )
+        {
+            if (open)
+            {
+                received.add(line);
+            }
+        }
+
+        /**
+         * Get the raw bytes of the client's address.
+         * @return the address bytes.
+         */
+        public byte[] getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Get the client's address in String form.
+         * @return the client's address.
+         */
+        public String getHostAddress()
+        {
+            return host;
+        }
+
+        /**
+         * Is the client on this machine.
+         * @return if the client's address is a loopback address.
+         */
+        public boolean isLoopback()
+        {
+            return loopback;
+        }
+
+        /**
+         * Close the link from the server's side.
+         */
+        public void close()
+        {
+            if (!open)
+            {
+                return;
+            }
+
+            open = false;
+            transport.closed.add(this);
+        }
+    }
+}
@@ -1,5 +1,12 @@
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 // -------------------------------------------------------------------------
 /**
@@ -10,22 +17,91 @@ import java.net.ServerSocket;
  *  matched with each other. When a game is started, two users are popped
  *  off the queue and matched with each other.
  *
+ *  Every waiting client is issued a session token along with its WAIT. If
+ *  its connection drops, its place in the queue is held for a short grace
+ *  period, and a new connection which sends "RESUME token" takes the place
+ *  back over instead of starting again at the end of the queue.
+ *
+ *  A waiting client may send "STATUS" to be told its position in the queue
+ *  and roughly how long it has left to wait, going by how quickly games
+ *  have been made recently.
+ *
+ *  Clients wait in lanes, each with its own queue, and are only matched
+ *  within their lane. A client starts in the casual lane, and may send
+ *  "LANE name" to move to the back of another lane, such as ranked or test;
+ *  it is answered with "LANE name" giving the lane it is now in. A
+ *  LaneScheduler shares out the matches made after each arrival between
+ *  the lanes with games ready, by their weights, so a flood of clients in
+ *  one lane can't hold the other lanes up.
+ *
+ *  In locality mode, a client is paired with the waiting client whose
+ *  address shares the longest prefix with its own, within its region of a
+ *  RegionTable. A client which has waited past the locality deadline is
+ *  paired first come first served again. Launching with
+ *  -Dnetbreak.regions=file turns the mode on with a PrefixRegionTable read
+ *  from the file.
+ *
+ *  In batch mode, arrivals are not matched as they come. Instead, every so
+ *  often the whole queue is paired up at once by a BatchMatcher, keeping
+ *  the total PairCost of the pairs low, at the price of clients waiting up
+ *  to one batch window longer. Launching with -Dnetbreak.batch=millis turns
+ *  the mode on, pairing clients by AddressDistance every window.
+ *
+ *  Setting a MatchTrace on the server times each accept, push, purge, match
+ *  and notification, for finding where the time goes on a live server. It
+ *  is off by default; -Dnetbreak.trace=true turns on a LogTrace.
+ *
+ *  Each host may only open connections at a limited rate, and two clients
+ *  from the same (non loopback) address are never matched with each other.
+ *
+ *  Clients come in through a Transport. Normally that is a SocketTransport
+ *  listening on the port, but the server can also be built on any other
+ *  Transport and Clock, such as the MemoryTransport and VirtualClock used by
+ *  the MatchSimulator, and then driven one accept at a time.
+ *
  *  The server is implemented using a multi-threaded model. This isn't much
  *  of a problem because we don't expect to handle many connections. If the
  *  server were intended to scale larger than a few hundred to a few thousand
  *  connections then a more stable model would be to use asynchronous polling
- *  of the client connections.
+ *  of the client connections. That is what the compact mode does: launched
+ *  as `java NetBreakServer port compact`, the server uses a NioTransport,
+ *  which reads every client from one selector thread and keeps no buffers
+ *  for clients that are just waiting.
  *
  *  @author ram
  *  @version 2010.11.16
  */
 
 public class NetBreakServer
+    implements ClientListener, ValidPairQueue.PairFilter<ClientConnection>
 {
     private static int DEFAULTPORT = 2114;
+    private static long SESSIONGRACE = 15000;
+    private static double ACCEPTBURST = 10;
+    private static double ACCEPTRATE = 2;
+    private static long LOCALITYDEADLINE = 10000;
+    private static int BATCHCANDIDATES = 8;
+    private static int BATCHSIZE = 256;
+    private static int BATCHTURNS = 8;
+    private static int MATCHBUDGET = 2;
+    private static long TICKMILLIS = 1000;
+    private static String DEFAULTLANE = "casual";
 
-    private ServerSocket server;
-    private ValidPairQueue<ClientConnection> clients;
+    private Transport transport;
+    private Clock clock;
+    private Map<String, Lane> lanes;
+    private Lane defaultLane;
+    private LaneScheduler scheduler;
+    private Map<String, ValidPairQueue.Slot<ClientConnection>> sessions;
+    private int pruneAt;
+    private SecureRandom random;
+    private RateLimiter limiter;
+    private volatile MatchTrace trace;
+    private boolean localityMode;
+    private RegionTable localityTable;
+    private int localityBits;
+    private long localityDeadline;
+    private BatchMatcher<ClientConnection> batcher;
 
     /**
      * Initialize the game server on the default port or on the port passed in
@@ -34,11 +110,12 @@ public class NetBreakServer
      */
     public static void main( String[] argv )
     {
-        // Determine the port.
+        // Determine the port, and whether to run in compact mode.
         int port = (argv.length == 0 ? DEFAULTPORT : Integer.valueOf(argv[0]));
+        boolean compact = (argv.length > 1 && argv[1].equals("compact"));
 
         // Launch the game server.
-        new NetBreakServer(port);
+        new NetBreakServer(port, compact);
     }
 
     /**
@@ -49,13 +126,108 @@ public class NetBreakServer
      */
     public NetBreakServer( int port )
     {
-        // Set up the clients queue.
-        clients = new ValidPairQueue<ClientConnection>();
+        this(port, false);
+    }
 
-        // Create the socket listening on the specified port.
+    /**
+     * Create a new NetBreakServer instance. Launch on the port passed in as
+     * an argument, optionally in compact mode.
+     * @param port
+     *        The port that the NetBreakServer instance should listen on.
+     * @param compact
+     *        Whether to read all clients from one selector thread instead of
+     *        a thread per client.
+     */
+    public NetBreakServer( int port, boolean compact )
+    {
+        this(listen(port, compact), new SystemClock());
+
+        long window = Long.getLong("netbreak.batch", 0);
+        if (window > 0)
+        {
+            setBatching(new AddressDistance());
+            startBatching(window);
+        }
+        else
+        {
+            startTicking(TICKMILLIS);
+        }
+
+        serve();
+    }
+
+    /**
+     * Create a new NetBreakServer instance taking clients from a transport.
+     * The server doesn't accept anyone until serve or acceptNext is called.
+     * @param clientTransport
+     *        The transport to accept clients from.
+     * @param serverClock
+     *        The clock to time sessions and rate limits with.
+     */
+    public NetBreakServer( Transport clientTransport, Clock serverClock )
+    {
+        transport = clientTransport;
+        clock = serverClock;
+
+        // Set up the lanes and the session index into their queues.
+        lanes = new LinkedHashMap<String, Lane>();
+        scheduler = new LaneScheduler();
+        sessions = new HashMap<String, ValidPairQueue.Slot<ClientConnection>>();
+        pruneAt = 16;
+        random = new SecureRandom();
+        limiter = new RateLimiter(ACCEPTBURST, ACCEPTRATE);
+
+        defaultLane = addLane(DEFAULTLANE, 4);
+        addLane("ranked", 4);
+        addLane("test", 1);
+
+        if (Boolean.getBoolean("netbreak.trace"))
+        {
+            setTrace(new LogTrace(System.err));
+        }
+
+        String regionFile = System.getProperty("netbreak.regions");
+        if (regionFile != null)
+        {
+            try
+            {
+                FileReader in = new FileReader(regionFile);
+                try
+                {
+                    setLocality(PrefixRegionTable.load(in), 0,
+                        LOCALITYDEADLINE);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not read regions from " +
+                    regionFile);
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Create the socket listening on the specified port.
+     * @param port
+     *        The port to listen on.
+     * @param compact
+     *        Whether to listen with a NioTransport.
+     * @return the transport listening on the port.
+     */
+    private static Transport listen( int port, boolean compact )
+    {
         try
         {
-            server = new ServerSocket(port);
+            if (compact)
+            {
+                return new NioTransport(port);
+            }
+            return new SocketTransport(port);
         }
         catch (IOException e)
         {
@@ -63,54 +235,866 @@ public class NetBreakServer
             //System.exit(-1);
             throw new IllegalStateException(e);
         }
+    }
+
+    /**
+     * Continually listen for clients and accept them, for as long as the
+     * transport has clients to give.
+     */
+    public void serve()
+    {
+        while ( acceptNext() )
+        {
+            // Keep accepting.
+        }
+    }
 
-        // Continually listen for clients and accept them.
-        // We add the client connection to our internal game queue of waiting
-        // clients, then run the client connection thread so that we can
-        // communicate with the client.
-        while ( true )
+    /**
+     * Accept the next client from the transport.
+     * We add the client connection to our internal game queue of waiting
+     * clients, then have the transport start reading from it so that we can
+     * communicate with the client.
+     * @return false if the transport has no more clients.
+     */
+    public boolean acceptNext()
+    {
+        MatchTrace tracing = trace;
+        long start = (tracing != null ? clock.nanoTime() : 0);
+
+        Link link;
+        try
+        {
+            link = transport.accept();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to accept a connection.");
+            return true;
+        }
+
+        if (link == null)
+        {
+            return false;
+        }
+
+        if (tracing != null)
+        {
+            tracing.accepted(clock.nanoTime() - start, waitingCount());
+        }
+
+        // Accept the new client, unless its host is over its limit.
+        if (!limiter.tryAcquire(link.getAddress(), clock.nanoTime()))
         {
-            ClientConnection client;
             try
             {
-                // Accept the new client.
-                client = new ClientConnection( server.accept() );
+                link.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error closing connection.");
+            }
+            return true;
+        }
+
+        ClientConnection client = new ClientConnection( link, this );
+
+        synchronized (lanes)
+        {
+            // Add the client to the default lane and index its session.
+            String token = newSessionToken();
+            client.setSessionToken(token);
+            enqueue(client, defaultLane);
+
+            // Tell the client we have them, and to wait for an IP.
+            client.sendData("WAIT " + token);
+
+            // Start reading from the client.
+            transport.start(client);
+
+            // Try to create a new game (if we can).
+            createGame(client);
+            pruneSessions();
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a client to the back of a lane's queue, under its session token.
+     * Must be called while holding the lock on the lanes.
+     * @param client
+     *        The client.
+     * @param lane
+     *        The lane to wait in.
+     */
+    private void enqueue( ClientConnection client, Lane lane )
+    {
+        MatchTrace tracing = trace;
+        long start = (tracing != null ? clock.nanoTime() : 0);
 
-                // Add the client to the queue.
-                clients.push(client);
+        client.setLane(lane);
+        client.setArrivalTime(clock.currentTimeMillis());
 
-                // Create a thread to handle the client and run it.
-                Thread cThread = new Thread(client);
-                cThread.start();
+        ValidPairQueue.Slot<ClientConnection> slot =
+            lane.getQueue().push(client);
+        sessions.put(client.getSessionToken(), slot);
+        if (tracing != null)
+        {
+            tracing.enqueued(clock.nanoTime() - start, lane.depth());
+        }
 
-                // Tell the client we have them, and to wait for an IP.
-                client.sendData("WAIT");
+        if (lane.getLocality() != null)
+        {
+            client.setLocalityEntry(lane.getLocality().add(slot));
+        }
+    }
 
-                // Try to create a new game (if we can).
-                createGame();
+    /**
+     * Add a new empty lane, or get the lane if it already exists.
+     * @param name
+     *        The name clients ask for the lane by.
+     * @param weight
+     *        The lane's share of the matches. At least 1.
+     * @return the lane.
+     */
+    public Lane addLane( String name, int weight )
+    {
+        synchronized (lanes)
+        {
+            Lane lane = lanes.get(name);
+            if (lane == null)
+            {
+                lane = new Lane(name, weight, SESSIONGRACE, clock);
+                lane.getQueue().setTrace(trace);
+                if (localityMode)
+                {
+                    lane.setLocality(new LocalityIndex(localityTable,
+                        localityBits));
+                }
+                lanes.put(name, lane);
+            }
+            return lane;
+        }
+    }
+
+    /**
+     * Get a lane by name, for instance to read its metrics.
+     * @param name
+     *        The lane's name.
+     * @return the lane, or null if there is no such lane.
+     */
+    public Lane getLane( String name )
+    {
+        synchronized (lanes)
+        {
+            return lanes.get(name);
+        }
+    }
+
+    /**
+     * Get all the lanes, in the order they were added.
+     * @return the lanes.
+     */
+    public List<Lane> getLanes()
+    {
+        synchronized (lanes)
+        {
+            return new ArrayList<Lane>(lanes.values());
+        }
+    }
+
+    /**
+     * Set the trace to time the server's work with.
+     * @param serverTrace
+     *        The trace, or null to stop tracing.
+     */
+    public void setTrace( MatchTrace serverTrace )
+    {
+        synchronized (lanes)
+        {
+            trace = serverTrace;
+            for (Lane lane : lanes.values())
+            {
+                lane.getQueue().setTrace(serverTrace);
+            }
+        }
+    }
+
+    /**
+     * Turn locality mode on or off. Clients already waiting when it is
+     * turned on are only matched once they reach the deadline.
+     * @param table
+     *        The regions clients are matched within, or null for one region.
+     * @param minSharedBits
+     *        How many leading address bits two clients must share to be
+     *        paired before the deadline.
+     * @param deadlineMillis
+     *        How long a client waits for a near partner before being paired
+     *        first come first served.
+     */
+    public void setLocality( RegionTable table, int minSharedBits,
+        long deadlineMillis )
+    {
+        synchronized (lanes)
+        {
+            localityMode = true;
+            localityTable = table;
+            localityBits = minSharedBits;
+            localityDeadline = deadlineMillis;
+
+            for (Lane lane : lanes.values())
+            {
+                lane.setLocality(new LocalityIndex(table, minSharedBits));
+            }
+        }
+    }
+
+    /**
+     * Turn locality mode off, going back to first come first served.
+     */
+    public void clearLocality()
+    {
+        synchronized (lanes)
+        {
+            localityMode = false;
+            localityTable = null;
+
+            for (Lane lane : lanes.values())
+            {
+                lane.setLocality(null);
+            }
+        }
+    }
+
+    /**
+     * Turn batch mode on or off. While it is on, clients are only matched
+     * by matchBatch.
+     * @param cost
+     *        The cost to keep low over each batch, or null to go back to
+     *        matching clients as they arrive.
+     */
+    public void setBatching( PairCost<ClientConnection> cost )
+    {
+        synchronized (lanes)
+        {
+            if (batcher != null)
+            {
+                batcher.shutdown();
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            batcher = (cost == null ? null :
+                new BatchMatcher<ClientConnection>(cost, this,
+                    BATCHCANDIDATES, threads));
+        }
+    }
+
+    /**
+     * Start a thread calling matchBatch every window, for as long as the
+     * program runs.
+     * @param windowMillis
+     *        How long to gather clients for between batches.
+     */
+    public void startBatching( final long windowMillis )
+    {
+        Thread batchThread = new Thread()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(windowMillis);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    matchBatch();
+                }
+            }
+        };
+        batchThread.setDaemon(true);
+        batchThread.start();
+    }
+
+    /**
+     * Make every game which has become ready without anyone arriving, such
+     * as in locality mode once the client at the front of a lane has waited
+     * past the deadline. The games are shared out between the lanes by the
+     * LaneScheduler. Does nothing in batch mode.
+     * @return the number of games started.
+     */
+    public int tick()
+    {
+        synchronized (lanes)
+        {
+            if (batcher != null)
+            {
+                return 0;
+            }
+
+            // Each lane is purged once here, rather than before every game.
+            for (Lane lane : lanes.values())
+            {
+                schedule(lane);
+            }
+
+            return makeGames(Integer.MAX_VALUE, false);
+        }
+    }
+
+    /**
+     * Start a thread calling tick every period, for as long as the program
+     * runs.
+     * @param periodMillis
+     *        How long to wait between ticks.
+     */
+    public void startTicking( final long periodMillis )
+    {
+        Thread tickThread = new Thread()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(periodMillis);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    tick();
+                }
+            }
+        };
+        tickThread.setDaemon(true);
+        tickThread.start();
+    }
+
+    /**
+     * Pair up the clients waiting, in batch mode, each lane on its own. The
+     * lanes take turns by weight through the LaneScheduler, each turn
+     * pairing up to BATCHSIZE clients from the front of a lane, for up to
+     * BATCHTURNS turns a batch. A lane which still has clients waiting
+     * when the turns run out carries on where it left off next batch.
+     * The pairs are worked out without holding up the rest of the server,
+     * and any client which left, resumed or changed lanes in the meantime
+     * is skipped over.
+     * @return the number of games started.
+     */
+    public synchronized int matchBatch()
+    {
+        MatchTrace tracing = trace;
+        int games = 0;
+
+        for (int turn = 0; turn < BATCHTURNS; turn++)
+        {
+            BatchMatcher<ClientConnection> matcher;
+            Lane lane;
+            List<ClientConnection> batch;
+
+            synchronized (lanes)
+            {
+                matcher = batcher;
+                if (matcher == null)
+                {
+                    return games;
+                }
+
+                if (turn == 0)
+                {
+                    for (Lane each : lanes.values())
+                    {
+                        if (canBatch(each))
+                        {
+                            scheduler.ready(each);
+                        }
+                    }
+                }
+
+                lane = scheduler.next();
+                if (lane == null)
+                {
+                    return games;
+                }
+                batch = lane.getQueue().peekAll(BATCHSIZE);
+            }
+
+            long start = (tracing != null ? clock.nanoTime() : 0);
+            List<ValidPairQueue.Pair<ClientConnection>> pairs =
+                matcher.match(batch);
+            int made = 0;
+
+            synchronized (lanes)
+            {
+                for (ValidPairQueue.Pair<ClientConnection> pair : pairs)
+                {
+                    ValidPairQueue.Slot<ClientConnection> first =
+                        waitingSlot(pair.first(), lane);
+                    ValidPairQueue.Slot<ClientConnection> second =
+                        waitingSlot(pair.second(), lane);
+
+                    if (first != null && second != null)
+                    {
+                        lane.getQueue().remove(first);
+                        lane.getQueue().remove(second);
+                        startGame(lane, pair, tracing, start);
+                        start = (tracing != null ? clock.nanoTime() : 0);
+                        made++;
+                    }
+                }
+
+                // A lane whose front clients made no games has none to make
+                // until more arrive.
+                scheduler.served(lane, made > 0 && canBatch(lane));
+            }
+
+            games += made;
+        }
+
+        return games;
+    }
+
+    /**
+     * Does a lane have enough clients waiting to be worth a batch, as of the
+     * last time its queue was purged.
+     * Must be called while holding the lock on the lanes.
+     * @param lane
+     *        The lane.
+     * @return if at least two clients in the lane aren't being held.
+     */
+    private boolean canBatch( Lane lane )
+    {
+        ValidPairQueue<ClientConnection> queue = lane.getQueue();
+        return queue.size() - queue.heldCount() >= 2;
+    }
+
+    /**
+     * Get the number of clients waiting in all the lanes, including the
+     * slots held for clients that may come back.
+     * @return the number of waiting clients.
+     */
+    public int waitingCount()
+    {
+        synchronized (lanes)
+        {
+            int count = 0;
+            for (Lane lane : lanes.values())
+            {
+                count += lane.depth();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Handle a line sent by one of the clients. A client sending
+     * "RESUME token" takes back over the queue slot of that session, and a
+     * client sending "PING" as a heartbeat is answered with "PONG". A client
+     * sending "STATUS" is told where it is in the queue, and one sending
+     * "LANE name" is moved to that lane.
+     * @param client
+     *        The client which sent the line.
+     * @param line
+     *        The line of data the client sent.
+     */
+    public void lineReceived( ClientConnection client, String line )
+    {
+        if (line.startsWith("RESUME "))
+        {
+            resume(client, line.substring("RESUME ".length()).trim());
+        }
+        else if (line.startsWith("LANE "))
+        {
+            changeLane(client, line.substring("LANE ".length()).trim());
+        }
+        else if (line.equals("PING"))
+        {
+            client.sendData("PONG");
+        }
+        else if (line.equals("STATUS"))
+        {
+            status(client);
+        }
+        else
+        {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Start holding the queue slot of a client which has left, so its grace
+     * period runs from when it left. The client is taken out of the locality
+     * index while its slot is held, and put back in if it resumes.
+     * @param client
+     *        The client which left.
+     */
+    public void clientLeft( ClientConnection client )
+    {
+        synchronized (lanes)
+        {
+            ValidPairQueue.Slot<ClientConnection> slot =
+                sessions.get(client.getSessionToken());
+
+            // Only hold the slot if the client hasn't been replaced in it.
+            if (slot != null && slot.getItem() == client)
+            {
+                client.getLane().getQueue().hold(slot);
+                unindex(client);
+            }
+        }
+    }
+
+    /**
+     * Can two clients be matched with each other. Clients from the same
+     * address can't, unless they are both on this machine.
+     * @param first
+     *        The client nearer the front of the queue.
+     * @param second
+     *        The client it would be matched with.
+     * @return if the clients may be matched.
+     */
+    public boolean canPair( ClientConnection first, ClientConnection second )
+    {
+        return first.isLoopback() ||
+            !first.getIPAddress().equals(second.getIPAddress());
+    }
+
+    /**
+     * Move a client into the queue slot of an earlier session, giving up the
+     * slot it was given when it connected. The client goes back to the lane
+     * of that session.
+     * @param client
+     *        The reconnecting client.
+     * @param token
+     *        The session token the client was issued before.
+     */
+    private void resume( ClientConnection client, String token )
+    {
+        synchronized (lanes)
+        {
+            ValidPairQueue.Slot<ClientConnection> slot = sessions.get(token);
+
+            // The client may have been matched already, and a client can't
+            // resume its own session.
+            if (!client.isValid() || slot == null ||
+                token.equals(client.getSessionToken()))
+            {
+                client.sendData("WAIT " + client.getSessionToken());
+                return;
+            }
+
+            ClientConnection old = slot.getItem();
+            Lane lane = old.getLane();
+            if (!lane.getQueue().reclaim(slot, client))
+            {
+                sessions.remove(token);
+                client.sendData("WAIT " + client.getSessionToken());
+                return;
+            }
+
+            // Give up the slot the client got when it connected.
+            ValidPairQueue.Slot<ClientConnection> fresh =
+                sessions.remove(client.getSessionToken());
+            if (fresh != null)
+            {
+                client.getLane().getQueue().remove(fresh);
+            }
+            unindex(client);
+            client.setSessionToken(token);
+            client.setLane(lane);
+            client.setArrivalTime(old.getArrivalTime());
+
+            // Index the client under its new address.
+            if (lane.getLocality() != null)
+            {
+                unindex(old);
+                client.setLocalityEntry(lane.getLocality().add(slot));
+            }
+
+            // The old connection may not have noticed it is gone yet.
+            try
+            {
+                if (old.isValid())
+                {
+                    old.close();
+                }
             }
             catch (IOException e)
             {
-                System.err.println("Failed to accept a connection.");
+                System.err.println("Error closing connection.");
+            }
+
+            client.sendData("WAIT " + token);
+            createGame(client);
+        }
+    }
+
+    /**
+     * Move a waiting client to the back of another lane, and tell it which
+     * lane it is in as "LANE name". A client asking for a lane which doesn't
+     * exist stays where it is.
+     * @param client
+     *        The client.
+     * @param name
+     *        The name of the lane to move to.
+     */
+    private void changeLane( ClientConnection client, String name )
+    {
+        synchronized (lanes)
+        {
+            Lane lane = lanes.get(name);
+            Lane old = client.getLane();
+            ValidPairQueue.Slot<ClientConnection> slot =
+                waitingSlot(client, old);
+
+            if (lane != null && slot != null && lane != old)
+            {
+                old.getQueue().remove(slot);
+                unindex(client);
+                enqueue(client, lane);
+
+                // Someone else may now be at the front of the old lane.
+                if (batcher == null)
+                {
+                    schedule(old);
+                }
+            }
+
+            client.sendData("LANE " + client.getLane().getName());
+            createGame(client);
+        }
+    }
+
+    /**
+     * Take a client out of its lane's locality index, if it is in it.
+     * @param client
+     *        The client to take out.
+     */
+    private void unindex( ClientConnection client )
+    {
+        client.getLane().unindex(client);
+    }
+
+    /**
+     * Tell a client its position in its lane's queue and an estimate of how
+     * many milliseconds it has left to wait, as "STATUS position wait". The
+     * wait is -1 until enough games have been made in the lane to estimate
+     * it, and both are -1 if the client isn't waiting.
+     * @param client
+     *        The client asking.
+     */
+    private void status( ClientConnection client )
+    {
+        synchronized (lanes)
+        {
+            Lane lane = client.getLane();
+            ValidPairQueue.Slot<ClientConnection> slot =
+                sessions.get(client.getSessionToken());
+            int position = (slot == null || slot.getItem() != client ? 0 :
+                lane.getQueue().position(slot));
+
+            if (position == 0)
+            {
+                client.sendData("STATUS -1 -1");
+                return;
             }
+
+            // Each game takes two clients off the front of the queue.
+            double rate = lane.matchesPerSecond(clock.nanoTime());
+            long wait = (rate == 0 ? -1 :
+                (long)((position + 1) / 2 / rate * 1000));
+
+            client.sendData("STATUS " + position + " " + wait);
         }
     }
 
     /**
-     * Create a new game.
-     * If we can, take the first two clients in the queue, remove them, and
-     * start a game by sending each the ip of the other. After this point, it
-     * is the job of the clients to set up the game in a p2p fashion.
+     * Find the queue slot of a client which is still waiting in a lane.
+     * @param client
+     *        The client.
+     * @param lane
+     *        The lane the client should be waiting in.
+     * @return the client's slot, or null if it isn't waiting in the lane.
      */
-    private void createGame()
+    private ValidPairQueue.Slot<ClientConnection> waitingSlot(
+        ClientConnection client, Lane lane )
     {
-        if (!clients.canPop())
+        ValidPairQueue.Slot<ClientConnection> slot =
+            sessions.get(client.getSessionToken());
+
+        if (slot == null || slot.getItem() != client || !slot.isQueued() ||
+            !client.isValid() || client.getLane() != lane)
+        {
+            return null;
+        }
+        return slot;
+    }
+
+    /**
+     * Make a new random session token.
+     * @return the session token in hex form.
+     */
+    private String newSessionToken()
+    {
+        return Long.toHexString(random.nextLong()) +
+            Long.toHexString(random.nextLong());
+    }
+
+    /**
+     * Forget the sessions whose slots have left their queue. Only sweeps
+     * once the index has doubled since the last sweep left it, so the sweep
+     * costs a constant amount per session on average.
+     */
+    private void pruneSessions()
+    {
+        if (sessions.size() <= pruneAt)
         {
             return;
         }
 
-        // Get the clients from the queue.
-        ValidPairQueue.Pair<ClientConnection> pair = clients.pop();
+        Iterator<ValidPairQueue.Slot<ClientConnection>> it =
+            sessions.values().iterator();
+        while (it.hasNext())
+        {
+            if (!it.next().isQueued())
+            {
+                it.remove();
+            }
+        }
+
+        pruneAt = 2 * sessions.size() + 16;
+    }
+
+    /**
+     * Create new games.
+     * If we can, take the first two clients in a lane's queue, remove them,
+     * and start a game by sending each the ip of the other. After this
+     * point, it is the job of the clients to set up the game in a p2p
+     * fashion.
+     * In locality mode, the client which just arrived is first paired with
+     * the nearest client waiting in its lane, if there is one.
+     * Then the newcomer's lane is handed to the LaneScheduler if it has a
+     * game ready, and up to MATCHBUDGET games are made from the lanes the
+     * scheduler picks. In batch mode, games are only created by matchBatch.
+     * Must be called while holding the lock on the lanes.
+     * @param newcomer
+     *        The client which just arrived.
+     */
+    private void createGame( ClientConnection newcomer )
+    {
+        if (batcher != null)
+        {
+            return;
+        }
+
+        MatchTrace tracing = trace;
+        long start = (tracing != null ? clock.nanoTime() : 0);
+        Lane lane = newcomer.getLane();
+
+        // Pair the newcomer with the nearest client waiting.
+        ValidPairQueue.Pair<ClientConnection> pair = findNearest(newcomer);
+        if (pair != null)
+        {
+            startGame(lane, pair, tracing, start);
+        }
+
+        schedule(lane);
+        makeGames(MATCHBUDGET, true);
+    }
+
+    /**
+     * Hand a lane to the LaneScheduler if it has a game ready.
+     * Must be called while holding the lock on the lanes.
+     * @param lane
+     *        The lane.
+     */
+    private void schedule( Lane lane )
+    {
+        if (canMatch(lane, true))
+        {
+            scheduler.ready(lane);
+        }
+    }
+
+    /**
+     * Make games from the lanes the LaneScheduler picks, until no lane has
+     * a game ready or the budget is spent.
+     * Must be called while holding the lock on the lanes.
+     * @param budget
+     *        The most games to make.
+     * @param purge
+     *        Whether to scan a lane's queue for invalid clients before each
+     *        game, rather than going by the scan made when it was scheduled.
+     * @return the number of games started.
+     */
+    private int makeGames( int budget, boolean purge )
+    {
+        MatchTrace tracing = trace;
+        int games = 0;
+
+        for (int i = 0; i < budget; i++)
+        {
+            Lane lane = scheduler.next();
+            if (lane == null)
+            {
+                break;
+            }
+
+            // Get the clients from the queue.
+            long start = (tracing != null ? clock.nanoTime() : 0);
+            ValidPairQueue.Pair<ClientConnection> pair =
+                (canMatch(lane, purge) ? lane.getQueue().take(this) : null);
+            if (pair != null)
+            {
+                startGame(lane, pair, tracing, start);
+                games++;
+            }
+
+            // The queue was purged just before, so needn't be scanned again.
+            scheduler.served(lane, pair != null && canMatch(lane, false));
+        }
+
+        return games;
+    }
+
+    /**
+     * Start a game between a pair of clients already taken off their lane's
+     * queue, by sending each the ip of the other.
+     * Must be called while holding the lock on the lanes.
+     * @param lane
+     *        The lane the clients were waiting in.
+     * @param pair
+     *        The clients to match.
+     * @param tracing
+     *        The trace to time the match with, or null.
+     * @param start
+     *        When finding the pair started, in nanoseconds.
+     */
+    private void startGame( Lane lane,
+        ValidPairQueue.Pair<ClientConnection> pair, MatchTrace tracing,
+        long start )
+    {
+        long now = clock.currentTimeMillis();
+        lane.recordMatch(clock.nanoTime(),
+            now - pair.first().getArrivalTime(),
+            now - pair.second().getArrivalTime());
+
+        if (tracing != null)
+        {
+            tracing.matched(clock.nanoTime() - start, lane.depth());
+            start = clock.nanoTime();
+        }
+
+        // The matched clients have no session to come back to.
+        sessions.remove(pair.first().getSessionToken());
+        sessions.remove(pair.second().getSessionToken());
+        unindex(pair.first());
+        unindex(pair.second());
 
         // Get the client information.
         String ipFirst = pair.first().getIPAddress();
@@ -120,6 +1104,11 @@ public class NetBreakServer
         pair.first().sendData(ipSecond);
         pair.second().sendData(ipFirst);
 
+        if (tracing != null)
+        {
+            tracing.notified(clock.nanoTime() - start, lane.depth());
+        }
+
         try
         {
             pair.first().close();
@@ -131,6 +1120,65 @@ public class NetBreakServer
         }
     }
 
+    /**
+     * In locality mode, pair a client which just arrived with the nearest
+     * client waiting in its lane, and take them both off the queue.
+     * @param newcomer
+     *        The client which just arrived.
+     * @return the pair, or null if not in locality mode or nobody is near.
+     */
+    private ValidPairQueue.Pair<ClientConnection> findNearest(
+        ClientConnection newcomer )
+    {
+        Lane lane = newcomer.getLane();
+        if (lane.getLocality() == null || !newcomer.isValid() ||
+            newcomer.getLocalityEntry() == null)
+        {
+            return null;
+        }
+
+        ValidPairQueue.Slot<ClientConnection> near =
+            lane.getLocality().nearest(newcomer.getLocalityEntry());
+        ValidPairQueue.Slot<ClientConnection> own =
+            waitingSlot(newcomer, lane);
+
+        if (near == null || own == null || !canPair(near.getItem(), newcomer))
+        {
+            return null;
+        }
+
+        ClientConnection partner = near.getItem();
+        lane.getQueue().remove(near);
+        lane.getQueue().remove(own);
+        return new ValidPairQueue.Pair<ClientConnection>(partner, newcomer);
+    }
+
+    /**
+     * Can a game be made from the front of a lane's queue. In locality mode
+     * the client at the front must also have waited past the deadline.
+     * @param lane
+     *        The lane.
+     * @param purge
+     *        Whether to scan the queue for invalid clients first, rather
+     *        than going by the last scan.
+     * @return if the lane has a game ready.
+     */
+    private boolean canMatch( Lane lane, boolean purge )
+    {
+        if (purge)
+        {
+            lane.getQueue().purge();
+        }
+
+        if (!lane.getQueue().hasPair(this))
+        {
+            return false;
+        }
+
+        return (lane.getLocality() == null || lane.oldestWaitMillis(
+            clock.currentTimeMillis()) >= localityDeadline);
+    }
+
     /**
      * Clean up method when the JVM shuts down the program and in doing so the
      * game server object gets collected.
@@ -139,7 +1187,7 @@ public class NetBreakServer
     {
         try
         {
-            server.close();
+            transport.close();
             super.finalize();
         }
         catch (Throwable e)
@@ -22,6 +22,561 @@ public class NetBreakServerTest
         }
     };
 
+    private MemoryTransport transport;
+    private VirtualClock clock;
+    private NetBreakServer server;
+
+    /**
+     * Setup method called before all tests. Builds a server on an in memory
+     * transport, which can be driven one accept at a time.
+     */
+    public void setUp()
+    {
+        transport = new MemoryTransport();
+        clock = new VirtualClock();
+        server = new NetBreakServer(transport, clock);
+    }
+
+    /**
+     * Make an address for a test client.
+     * @param host
+     *        The last byte of the address.
+     * @return the address bytes.
+     */
+    private static byte[] host( int host )
+    {
+        return new byte[] { 10, 0, 0, (byte)host };
+    }
+
+    /**
+     * Test that two clients are told to wait and then matched.
+     */
+    public void testMatch()
+    {
+        MemoryTransport.MemoryLink first = transport.connect(host(1));
+        MemoryTransport.MemoryLink second = transport.connect(host(2));
+
+        assertTrue(server.acceptNext());
+        assertEquals(1, server.waitingCount());
+        assertTrue(first.getReceived().get(0).startsWith("WAIT "));
+
+        assertTrue(server.acceptNext());
+        assertFalse(server.acceptNext());
+        assertEquals(0, server.waitingCount());
+
+        assertEquals("10.0.0.2", first.getReceived().get(1));
+        assertEquals("10.0.0.1", second.getReceived().get(1));
+        assertFalse(first.isOpen());
+        assertFalse(second.isOpen());
+    }
+
+    /**
+     * Test that two clients from the same address aren't matched.
+     */
+    public void testSelfMatch()
+    {
+        transport.connect(host(1));
+        transport.connect(host(1));
+        MemoryTransport.MemoryLink other = transport.connect(host(2));
+        server.serve();
+
+        assertEquals(1, server.waitingCount());
+        assertEquals("10.0.0.1", other.getReceived().get(1));
+    }
+
+    /**
+     * Test that a client which drops and comes back with its token takes
+     * back its place in the queue.
+     */
+    public void testResume()
+    {
+        MemoryTransport.MemoryLink first = transport.connect(host(1));
+        MemoryTransport.MemoryLink second = transport.connect(host(1));
+        server.serve();
+        String token = first.getReceived().get(0).substring(5);
+
+        first.hangUp();
+        clock.advance(1000000000L);
+
+        // Coming back resumes the dropped session.
+        MemoryTransport.MemoryLink back = transport.connect(host(1));
+        back.send("RESUME " + token);
+        server.acceptNext();
+        assertEquals("WAIT " + token, back.getReceived().get(1));
+        assertEquals(2, server.waitingCount());
+
+        // The resumed client is still ahead of the second.
+        MemoryTransport.MemoryLink third = transport.connect(host(2));
+        server.acceptNext();
+        assertEquals("10.0.0.1", third.getReceived().get(1));
+        assertEquals("10.0.0.2", back.getReceived().get(2));
+        assertTrue(second.isOpen());
+    }
+
+    /**
+     * Test that a client which hangs up before it is accepted is never
+     * matched.
+     */
+    public void testHangUpBeforeAccept()
+    {
+        MemoryTransport.MemoryLink gone = transport.connect(host(1));
+        gone.hangUp();
+        MemoryTransport.MemoryLink second = transport.connect(host(2));
+        server.serve();
+
+        assertEquals(1, second.getReceived().size());
+        assertTrue(second.isOpen());
+
+        MemoryTransport.MemoryLink third = transport.connect(host(3));
+        server.serve();
+        assertEquals("10.0.0.3", second.getReceived().get(1));
+        assertEquals("10.0.0.2", third.getReceived().get(1));
+    }
+
+    /**
+     * Test that a token can't be resumed after its grace runs out.
+     */
+    public void testResumeExpired()
+    {
+        MemoryTransport.MemoryLink first = transport.connect(host(1));
+        server.serve();
+        String token = first.getReceived().get(0).substring(5);
+
+        first.hangUp();
+        clock.advance(60000000000L);
+        server.acceptNext();
+
+        MemoryTransport.MemoryLink back = transport.connect(host(3));
+        back.send("RESUME " + token);
+        server.acceptNext();
+        assertFalse(back.getReceived().get(1).equals("WAIT " + token));
+        assertEquals(1, server.waitingCount());
+    }
+
+    /**
+     * Test that heartbeats are answered.
+     */
+    public void testPing()
+    {
+        MemoryTransport.MemoryLink first = transport.connect(host(1));
+        server.serve();
+
+        first.send("PING");
+        assertEquals("PONG", first.getReceived().get(1));
+    }
+
+    /**
+     * Test asking for the position in the queue and the estimated wait.
+     */
+    public void testStatus()
+    {
+        MemoryTransport.MemoryLink first = transport.connect(host(1));
+        server.serve();
+
+        // No games have been made, so there is no estimate yet.
+        first.send("STATUS");
+        assertEquals("STATUS 1 -1", first.getReceived().get(1));
+
+        // Make a game every second for a while.
+        MemoryTransport.MemoryLink last = null;
+        for (int i = 0; i < 10; i++)
+        {
+            clock.advance(1000000000L);
+            transport.connect(host(10 + 2 * i));
+            last = transport.connect(host(11 + 2 * i));
+            server.serve();
+        }
+
+        // Clients from the same host as the last one wait behind it.
+        MemoryTransport.MemoryLink second = transport.connect(host(29));
+        MemoryTransport.MemoryLink third = transport.connect(host(29));
+        server.serve();
+
+        last.send("STATUS");
+        assertEquals("STATUS 1 1000", last.getReceived().get(1));
+        second.send("STATUS");
+        assertEquals("STATUS 2 1000", second.getReceived().get(1));
+        third.send("STATUS");
+        assertEquals("STATUS 3 2000", third.getReceived().get(1));
+    }
+
+    /**
+     * Test that a trace hears about every step of making a game.
+     */
+    public void testTrace()
+    {
+        final StringBuilder events = new StringBuilder();
+        server.setTrace(new MatchTrace()
+        {
+            public void accepted( long nanos, int depth )
+            {
+                events.append("accept" + depth + " ");
+            }
+
+            public void enqueued( long nanos, int depth )
+            {
+                events.append("enqueue" + depth + " ");
+            }
+
+            public void purged( long nanos, int scanned, int depth )
+            {
+                events.append("purge" + scanned + " ");
+            }
+
+            public void matched( long nanos, int depth )
+            {
+                events.append("match" + depth + " ");
+            }
+
+            public void notified( long nanos, int depth )
+            {
+                events.append("notify" + depth + " ");
+            }
+        });
+
+        transport.connect(host(1));
+        transport.connect(host(2));
+        server.serve();
+
+        assertEquals("accept0 purge0 enqueue1 purge1 " +
+            "accept1 purge1 enqueue2 purge2 purge2 match0 notify0 ",
+            events.toString());
+
+        // Tracing can be turned off again.
+        String traced = events.toString();
+        server.setTrace(null);
+        transport.connect(host(3));
+        server.serve();
+        assertEquals(traced, events.toString());
+    }
+
+    /**
+     * Test that in locality mode clients are paired with the nearest client
+     * waiting, until the front of the queue reaches the deadline.
+     */
+    public void testLocality()
+    {
+        server.setLocality(null, 8, 10000);
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        MemoryTransport.MemoryLink b = transport.connect(new byte[] {
+            20, 0, 0, 1 });
+        server.serve();
+        assertEquals(2, server.waitingCount());
+
+        // Sharing 30 bits with a, and only 3 with b.
+        MemoryTransport.MemoryLink c = transport.connect(new byte[] {
+            10, 0, 0, 2 });
+        server.serve();
+        assertEquals("10.0.0.2", a.getReceived().get(1));
+        assertEquals("10.0.0.1", c.getReceived().get(1));
+        assertTrue(b.isOpen());
+
+        // Nobody near b, until it has waited long enough.
+        MemoryTransport.MemoryLink d = transport.connect(new byte[] {
+            30, 0, 0, 1 });
+        server.serve();
+        assertEquals(2, server.waitingCount());
+
+        clock.advance(11000000000L);
+        MemoryTransport.MemoryLink e = transport.connect(new byte[] {
+            40, 0, 0, 1 });
+        server.serve();
+        assertEquals("30.0.0.1", b.getReceived().get(1));
+        assertEquals("20.0.0.1", d.getReceived().get(1));
+        assertTrue(e.isOpen());
+        assertEquals(1, server.waitingCount());
+    }
+
+    /**
+     * Test that in locality mode clients are only paired within a region
+     * before the deadline.
+     */
+    public void testLocalityRegions()
+    {
+        PrefixRegionTable table = new PrefixRegionTable();
+        table.add("10.0.0.0/9", 1);
+        table.add("10.128.0.0/9", 2);
+        server.setLocality(table, 0, 10000);
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        MemoryTransport.MemoryLink b = transport.connect(new byte[] {
+            10, (byte)200, 0, 1 });
+        server.serve();
+        assertEquals(2, server.waitingCount());
+
+        // Shares more with b by address, but is in a's region.
+        MemoryTransport.MemoryLink c = transport.connect(new byte[] {
+            10, 127, 0, 1 });
+        server.serve();
+        assertEquals("10.127.0.1", a.getReceived().get(1));
+        assertTrue(b.isOpen());
+        assertFalse(c.isOpen());
+    }
+
+    /**
+     * Test that clients kept apart by locality are paired once the front of
+     * the queue reaches the deadline, even if nobody else arrives.
+     */
+    public void testLocalityDeadline()
+    {
+        PrefixRegionTable table = new PrefixRegionTable();
+        table.add("10.0.0.0/8", 1);
+        table.add("20.0.0.0/8", 2);
+        server.setLocality(table, 0, 10000);
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        MemoryTransport.MemoryLink b = transport.connect(new byte[] {
+            20, 0, 0, 1 });
+        server.serve();
+
+        clock.advance(9000000000L);
+        assertEquals(0, server.tick());
+        assertEquals(2, server.waitingCount());
+
+        clock.advance(2000000000L);
+        assertEquals(1, server.tick());
+        assertEquals("20.0.0.1", a.getReceived().get(1));
+        assertEquals("10.0.0.1", b.getReceived().get(1));
+        assertEquals(0, server.waitingCount());
+        assertEquals(0, server.tick());
+    }
+
+    /**
+     * Test that clients are out of the locality index while their slots are
+     * held, and back in once they resume.
+     */
+    public void testLocalityHeld()
+    {
+        server.setLocality(null, 8, 10000);
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        transport.connect(new byte[] { 20, 0, 0, 1 });
+        server.serve();
+        String token = a.getReceived().get(0).substring(5);
+        assertEquals(2, server.getLane("casual").getLocality().size());
+
+        a.hangUp();
+        assertEquals(1, server.getLane("casual").getLocality().size());
+        assertEquals(2, server.waitingCount());
+
+        MemoryTransport.MemoryLink back = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        back.send("RESUME " + token);
+        server.serve();
+        assertEquals(2, server.getLane("casual").getLocality().size());
+
+        MemoryTransport.MemoryLink c = transport.connect(new byte[] {
+            10, 0, 0, 2 });
+        server.serve();
+        assertEquals("10.0.0.1", c.getReceived().get(1));
+        assertEquals("10.0.0.2", back.getReceived().get(2));
+    }
+
+    /**
+     * Test that clients whose held slots run out leave the locality index
+     * along with the queue.
+     */
+    public void testLocalityPurge()
+    {
+        server.setLocality(null, 8, 10000);
+
+        MemoryTransport.MemoryLink[] links = new MemoryTransport.MemoryLink[5];
+        for (int i = 0; i < links.length; i++)
+        {
+            links[i] = transport.connect(new byte[] {
+                (byte)(10 * (i + 1)), 0, 0, 1 });
+        }
+        server.serve();
+        assertEquals(5, server.getLane("casual").getLocality().size());
+
+        for (MemoryTransport.MemoryLink link : links)
+        {
+            link.hangUp();
+        }
+        clock.advance(20000000000L);
+
+        MemoryTransport.MemoryLink last = transport.connect(new byte[] {
+            60, 0, 0, 1 });
+        server.serve();
+        assertEquals(1, server.waitingCount());
+        assertEquals(1, server.getLane("casual").getLocality().size());
+        assertTrue(last.isOpen());
+    }
+
+    /**
+     * Test that in batch mode clients wait for the next batch, and are then
+     * paired with the nearest clients in it.
+     */
+    public void testBatch()
+    {
+        server.setBatching(new AddressDistance());
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            10, 0, 0, 1 });
+        MemoryTransport.MemoryLink b = transport.connect(new byte[] {
+            20, 0, 0, 1 });
+        MemoryTransport.MemoryLink c = transport.connect(new byte[] {
+            10, 0, 0, 2 });
+        MemoryTransport.MemoryLink d = transport.connect(new byte[] {
+            20, 0, 0, 2 });
+        server.serve();
+        assertEquals(4, server.waitingCount());
+
+        assertEquals(2, server.matchBatch());
+        assertEquals("10.0.0.2", a.getReceived().get(1));
+        assertEquals("10.0.0.1", c.getReceived().get(1));
+        assertEquals("20.0.0.2", b.getReceived().get(1));
+        assertEquals("20.0.0.1", d.getReceived().get(1));
+        assertEquals(0, server.waitingCount());
+
+        // A client which has dropped isn't paired.
+        MemoryTransport.MemoryLink e = transport.connect(host(5));
+        MemoryTransport.MemoryLink f = transport.connect(host(6));
+        server.serve();
+        f.hangUp();
+        assertEquals(0, server.matchBatch());
+        assertTrue(e.isOpen());
+
+        server.setBatching(null);
+        assertEquals(0, server.matchBatch());
+    }
+
+    /**
+     * Test that in batch mode the lanes take turns by weight when more
+     * clients are waiting than one batch pairs.
+     */
+    public void testBatchWeights()
+    {
+        server.setBatching(new AddressDistance());
+
+        for (int i = 0; i < 2000; i++)
+        {
+            transport.connect(new byte[] { 10, 0, (byte)(i >> 8), (byte)i });
+        }
+        for (int i = 0; i < 400; i++)
+        {
+            transport.connect(new byte[] { 10, 1, (byte)(i >> 8), (byte)i })
+                .send("LANE test");
+        }
+        server.serve();
+
+        // Eight turns of 256 clients: four for casual, one for test and
+        // then casual again until the turns run out.
+        assertEquals(1024, server.matchBatch());
+        assertEquals(7 * 128, server.getLane("casual").getMatched());
+        assertEquals(128, server.getLane("test").getMatched());
+
+        // Casual finishes its turn, then test gets the next.
+        assertEquals(104 + 72, server.matchBatch());
+        assertEquals(1000, server.getLane("casual").getMatched());
+        assertEquals(200, server.getLane("test").getMatched());
+        assertEquals(0, server.waitingCount());
+        assertEquals(0, server.matchBatch());
+    }
+
+    /**
+     * Test that clients are only matched within their lane, and that each
+     * lane keeps its own metrics.
+     */
+    public void testLanes()
+    {
+        MemoryTransport.MemoryLink a = transport.connect(host(1));
+        a.send("LANE ranked");
+        MemoryTransport.MemoryLink b = transport.connect(host(2));
+        server.serve();
+        assertEquals("LANE ranked", a.getReceived().get(1));
+        assertEquals(2, server.waitingCount());
+        assertEquals(1, server.getLane("ranked").depth());
+        assertEquals(1, server.getLane("casual").depth());
+
+        clock.advance(2000000000L);
+        long now = clock.currentTimeMillis();
+        assertEquals(2000, server.getLane("casual").oldestWaitMillis(now));
+        MemoryTransport.MemoryLink c = transport.connect(host(3));
+        server.serve();
+        assertEquals("10.0.0.3", b.getReceived().get(1));
+        assertTrue(a.isOpen());
+
+        MemoryTransport.MemoryLink d = transport.connect(host(4));
+        d.send("LANE ranked");
+        server.serve();
+        assertEquals("10.0.0.4", a.getReceived().get(2));
+        assertEquals("10.0.0.1", d.getReceived().get(2));
+
+        // Asking for a lane which doesn't exist stays put.
+        MemoryTransport.MemoryLink e = transport.connect(host(5));
+        e.send("LANE nowhere");
+        server.serve();
+        assertEquals("LANE casual", e.getReceived().get(1));
+
+        Lane casual = server.getLane("casual");
+        assertEquals(1, casual.getMatched());
+        assertEquals(2000, casual.getMaxWaitMillis());
+        assertEquals(1000.0, casual.getMeanWaitMillis(), 0.01);
+        assertEquals(1, server.getLane("ranked").getMatched());
+        assertEquals(0, server.getLane("test").getMatched());
+        assertEquals(3, server.getLanes().size());
+        assertEquals(1, server.waitingCount());
+    }
+
+    /**
+     * Test that a quiet lane whose clients are kept apart by locality still
+     * gets its game once they reach the deadline, while another lane is
+     * flooded with arrivals.
+     */
+    public void testQuietLane()
+    {
+        PrefixRegionTable table = new PrefixRegionTable();
+        table.add("10.0.0.0/8", 1);
+        table.add("20.0.0.0/8", 2);
+        table.add("30.0.0.0/8", 3);
+        server.setLocality(table, 0, 10000);
+
+        MemoryTransport.MemoryLink a = transport.connect(new byte[] {
+            20, 0, 0, 1 });
+        a.send("LANE ranked");
+        MemoryTransport.MemoryLink b = transport.connect(new byte[] {
+            30, 0, 0, 1 });
+        b.send("LANE ranked");
+        server.serve();
+
+        // Ten casual arrivals a second for 20 seconds.
+        for (int i = 0; i < 200; i++)
+        {
+            transport.connect(new byte[] { 10, 0, (byte)(i >> 8), (byte)i });
+            server.serve();
+            if (i % 10 == 9)
+            {
+                clock.advance(1000000000L);
+                server.tick();
+            }
+        }
+
+        assertEquals(100, server.getLane("casual").getMatched());
+        assertEquals(1, server.getLane("ranked").getMatched());
+        assertEquals("30.0.0.1", a.getReceived().get(2));
+        assertEquals(0, server.waitingCount());
+    }
+
+    /**
+     * Test that a host opening connections too quickly is turned away.
+     */
+    public void testRateLimit()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            transport.connect(host(1));
+        }
+        server.serve();
+
+        assertEquals(10, server.waitingCount());
+    }
+
     /**
      * Test opening a port less than 1024 (which you need to be root to do
      * legally). (This test will fail if it is run as root, but at that point
@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// -------------------------------------------------------------------------
+/**
+ *  The compact Transport, for when a great many clients are waiting at once.
+ *  Instead of a thread, a BufferedReader and a PrintWriter per client, all
+ *  the clients are read by a single selector thread. A waiting client keeps
+ *  nothing but its channel and selection key; a read buffer is borrowed
+ *  from a shared BufferPool only while a read is going on, and lines are
+ *  only copied into the link itself when one arrives in pieces.
+ *
+ *  Lines from clients are handed to their ClientConnection on the selector
+ *  thread, so listeners must not block for long.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class NioTransport
+    implements Transport
+{
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BUFFERSIZE = 8192;
+    private static final int POOLSIZE = 16;
+    private static final int MAXLINE = 1024;
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private BufferPool buffers;
+    private List<NioLink> starting;
+    private List<NioLink> failed;
+    private Thread selectThread;
+    private volatile boolean closing;
+
+    /**
+     * Create a new NioTransport listening on a port, and start its selector
+     * thread.
+     * @param port
+     *        The port to listen on, or 0 for any free port.
+     * @throws IOException if the port can't be listened on.
+     */
+    public NioTransport( int port ) throws IOException
+    {
+        server = ServerSocketChannel.open();
+        try
+        {
+            server.socket().bind(new InetSocketAddress(port));
+            selector = Selector.open();
+        }
+        catch (IOException e)
+        {
+            server.close();
+            throw e;
+        }
+
+        buffers = new BufferPool(BUFFERSIZE, POOLSIZE);
+        starting = new ArrayList<NioLink>();
+        failed = new ArrayList<NioLink>();
+
+        selectThread = new Thread()
+        {
+            public void run()
+            {
+                select();
+            }
+        };
+        selectThread.setDaemon(true);
+        selectThread.start();
+    }
+
+    /**
+     * Get the port this transport is listening on.
+     * @return the local port.
+     */
+    public int getPort()
+    {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Wait for and accept the next client.
+     * @return the link to the new client, or null once the transport is
+     *         closed.
+     * @throws IOException
+     */
+    public Link accept() throws IOException
+    {
+        SocketChannel channel;
+        try
+        {
+            channel = server.accept();
+        }
+        catch (ClosedChannelException e)
+        {
+            return null;
+        }
+
+        try
+        {
+            channel.configureBlocking(false);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        return new NioLink(channel);
+    }
+
+    /**
+     * Hand a client to the selector thread to be read from.
+     * @param client
+     *        The client to read from.
+     */
+    public void start( ClientConnection client )
+    {
+        NioLink link = (NioLink)client.getLink();
+        link.client = client;
+
+        synchronized (starting)
+        {
+            starting.add(link);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Stop listening on the port, and stop the selector thread. The selector
+     * is closed by its own thread, once it is done with the keys selected,
+     * and this waits for that to happen unless called on that thread.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        server.close();
+        closing = true;
+        selector.wakeup();
+
+        if (Thread.currentThread() != selectThread)
+        {
+            try
+            {
+                selectThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the pool read buffers are borrowed from.
+     * @return the buffer pool.
+     */
+    public BufferPool getBuffers()
+    {
+        return buffers;
+    }
+
+    /**
+     * Run the selector loop, reading from every client with data waiting,
+     * until the transport is closed. Then close the selector.
+     */
+    private void select()
+    {
+        while (!closing)
+        {
+            try
+            {
+                selector.select();
+                register();
+
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioLink link = (NioLink)key.attachment();
+                    try
+                    {
+                        if (key.isValid() && key.isWritable())
+                        {
+                            link.writeReady();
+                        }
+                        if (key.isValid() && key.isReadable())
+                        {
+                            link.readReady();
+                        }
+                    }
+                    catch (CancelledKeyException e)
+                    {
+                        // The server closed the link part way through.
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error selecting client connections.");
+            }
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error closing the selector.");
+        }
+    }
+
+    /**
+     * Register the clients handed over by start with the selector, and tell
+     * the clients whose writes failed that they have gone. Only called on
+     * the selector thread, so that no lock on a link is held while telling
+     * a client.
+     */
+    private void register()
+    {
+        List<NioLink> links;
+        synchronized (starting)
+        {
+            links = new ArrayList<NioLink>(starting);
+            starting.clear();
+        }
+
+        for (NioLink link : links)
+        {
+            if (!link.register())
+            {
+                link.deliver(null);
+            }
+        }
+
+        synchronized (failed)
+        {
+            links = new ArrayList<NioLink>(failed);
+            failed.clear();
+        }
+
+        for (NioLink link : links)
+        {
+            link.deliver(null);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A Link over a non-blocking socket channel. It holds no buffers of its
+     *  own while idle: only a line which arrived in pieces, or output the
+     *  client hasn't taken yet, is kept until it can be finished.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private class NioLink
+        implements Link
+    {
+        private SocketChannel channel;
+        private InetAddress address;
+        private SelectionKey key;
+        private ClientConnection client;
+        private byte[] partial;
+        private ByteBuffer unsent;
+
+        /**
+         * Create a new link over an accepted channel.
+         * @param socketChannel
+         *        The non-blocking channel to the client.
+         */
+        public NioLink( SocketChannel socketChannel )
+        {
+            channel = socketChannel;
+            address = channel.socket().getInetAddress();
+        }
+
+        /**
+         * Register the channel with the selector. Only called on the
+         * selector thread.
+         * @return false if the channel could not be registered.
+         */
+        public synchronized boolean register()
+        {
+            if (!channel.isOpen())
+            {
+                return false;
+            }
+
+            try
+            {
+                int ops = SelectionKey.OP_READ;
+                if (unsent != null)
+                {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key = channel.register(selector, ops, this);
+                return true;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Read whatever the client has sent, and hand each complete line
+         * to the client connection. Only called on the selector thread.
+         */
+        public void readReady()
+        {
+            ByteBuffer buffer = buffers.borrow();
+
+            try
+            {
+                int count = channel.read(buffer);
+                if (count < 0)
+                {
+                    deliver(null);
+                    return;
+                }
+
+                byte[] bytes = buffer.array();
+                int start = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    if (bytes[i] == '\n')
+                    {
+                        if (!deliver(line(bytes, start, i)))
+                        {
+                            return;
+                        }
+                        start = i + 1;
+                    }
+                }
+
+                keepPartial(bytes, start, count);
+            }
+            catch (IOException e)
+            {
+                deliver(null);
+            }
+            finally
+            {
+                buffers.release(buffer);
+            }
+        }
+
+        /**
+         * Make a line from the bytes before a newline, along with any
+         * piece of the line kept from an earlier read.
+         * @param bytes
+         *        The bytes read.
+         * @param from
+         *        Where the line starts in bytes.
+         * @param to
+         *        Where the newline is in bytes.
+         * @return the line, without the newline or a carriage return.
+         */
+        private String line( byte[] bytes, int from, int to )
+        {
+            byte[] source = bytes;
+            int length = to - from;
+
+            if (partial != null)
+            {
+                source = new byte[partial.length + length];
+                System.arraycopy(partial, 0, source, 0, partial.length);
+                System.arraycopy(bytes, from, source, partial.length, length);
+                from = 0;
+                length = source.length;
+                partial = null;
+            }
+
+            if (length > 0 && source[from + length - 1] == '\r')
+            {
+                length--;
+            }
+
+            return new String(source, from, length, CHARSET);
+        }
+
+        /**
+         * Keep the bytes of a line which hasn't finished arriving yet. A
+         * client whose line grows too long is disconnected.
+         * @param bytes
+         *        The bytes read.
+         * @param from
+         *        Where the unfinished line starts in bytes.
+         * @param to
+         *        Where the bytes read end.
+         */
+        private void keepPartial( byte[] bytes, int from, int to )
+        {
+            if (from == to)
+            {
+                return;
+            }
+
+            int kept = (partial == null ? 0 : partial.length);
+            if (kept + to - from > MAXLINE)
+            {
+                deliver(null);
+                return;
+            }
+
+            byte[] grown = new byte[kept + to - from];
+            if (partial != null)
+            {
+                System.arraycopy(partial, 0, grown, 0, kept);
+            }
+            System.arraycopy(bytes, from, grown, kept, to - from);
+            partial = grown;
+        }
+
+        /**
+         * Hand a line to the client connection.
+         * @param line
+         *        The line, or null if the client has left.
+         * @return true if more lines may follow.
+         */
+        public boolean deliver( String line )
+        {
+            partial = null;
+
+            try
+            {
+                return client.receive(line);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error closing connection.");
+                return false;
+            }
+        }
+
+        /**
+         * Send the output the client couldn't take earlier. Only called on
+         * the selector thread.
+         */
+        public synchronized void writeReady()
+        {
+            try
+            {
+                channel.write(unsent);
+                if (!unsent.hasRemaining())
+                {
+                    unsent = null;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            catch (IOException e)
+            {
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Send a line to the client. Whatever the client can't take right
+         * away is kept and sent by the selector thread.
+         * @param line
+         *        The line of data to send.
+         */
+        public synchronized void writeLine( String line )
+        {
+            if (!channel.isOpen())
+            {
+                return;
+            }
+
+            byte[] bytes = (line + "\n").getBytes(CHARSET);
+
+            // Keep the lines in order behind anything still unsent.
+            if (unsent != null)
+            {
+                ByteBuffer joined =
+                    ByteBuffer.allocate(unsent.remaining() + bytes.length);
+                joined.put(unsent).put(bytes).flip();
+                unsent = joined;
+                return;
+            }
+
+            try
+            {
+                ByteBuffer out = ByteBuffer.wrap(bytes);
+                channel.write(out);
+                if (out.hasRemaining())
+                {
+                    unsent = out;
+                    if (key != null && key.isValid())
+                    {
+                        key.interestOps(SelectionKey.OP_READ |
+                            SelectionKey.OP_WRITE);
+                        selector.wakeup();
+                    }
+                }
+            }
+            catch (CancelledKeyException e)
+            {
+                // The link was closed while the line was being sent.
+            }
+            catch (IOException e)
+            {
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Get the raw bytes of the client's address.
+         * @return the address bytes.
+         */
+        public byte[] getAddress()
+        {
+            return address.getAddress();
+        }
+
+        /**
+         * Get the client's address in String form.
+         * @return the client's address.
+         */
+        public String getHostAddress()
+        {
+            return address.getHostAddress();
+        }
+
+        /**
+         * Is the client on this machine.
+         * @return if the client's address is a loopback address.
+         */
+        public boolean isLoopback()
+        {
+            return address.isLoopbackAddress();
+        }
+
+        /**
+         * Close the channel, which also takes it off the selector.
+         * @throws IOException
+         */
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+
+        /**
+         * Close the channel after a failed write, and have the selector
+         * thread tell the client connection.
+         */
+        private void closeQuietly()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error closing connection.");
+            }
+
+            synchronized (failed)
+            {
+                failed.add(this);
+            }
+            selector.wakeup();
+        }
+    }
+}
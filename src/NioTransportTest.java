@@ -0,0 +1,322 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import student.TestCase;
+
+// -------------------------------------------------------------------------
+/**
+ *  Test the NioTransport over real loopback sockets.
+ *  The server is driven one accept at a time from the test thread, while
+ *  the transport's selector thread reads from the clients.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class NioTransportTest
+    extends TestCase
+{
+    private NioTransport transport;
+    private NetBreakServer server;
+
+    /**
+     * Setup method called before all tests. Listens on any free port.
+     * @throws IOException if the port can't be listened on.
+     */
+    public void setUp() throws IOException
+    {
+        transport = new NioTransport(0);
+        server = new NetBreakServer(transport, new SystemClock());
+    }
+
+    /**
+     * Stop the transport after each test.
+     * @throws IOException
+     */
+    public void tearDown() throws IOException
+    {
+        transport.close();
+    }
+
+    /**
+     * Connect a client to the transport.
+     * @return the client's socket.
+     * @throws IOException
+     */
+    private Socket connect() throws IOException
+    {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"),
+            transport.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Make a reader for what the server sends a client.
+     * @param socket
+     *        The client's socket.
+     * @return the reader.
+     * @throws IOException
+     */
+    private BufferedReader reader( Socket socket ) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(
+            socket.getInputStream(), "UTF-8"));
+    }
+
+    /**
+     * Test that two clients are told to wait and then matched.
+     * @throws IOException
+     */
+    public void testMatch() throws IOException
+    {
+        Socket first = connect();
+        Socket second = connect();
+        BufferedReader firstIn = reader(first);
+        BufferedReader secondIn = reader(second);
+
+        server.acceptNext();
+        assertTrue(firstIn.readLine().startsWith("WAIT "));
+
+        server.acceptNext();
+        assertTrue(secondIn.readLine().startsWith("WAIT "));
+        assertEquals("127.0.0.1", firstIn.readLine());
+        assertEquals("127.0.0.1", secondIn.readLine());
+
+        // The server closed both connections.
+        assertNull(firstIn.readLine());
+        assertNull(secondIn.readLine());
+        first.close();
+        second.close();
+    }
+
+    /**
+     * Test that a line arriving in pieces is put back together, and that
+     * the read buffer goes back to the pool afterwards.
+     * @throws Exception
+     */
+    public void testSplitLine() throws Exception
+    {
+        Socket client = connect();
+        BufferedReader in = reader(client);
+        OutputStream out = client.getOutputStream();
+        server.acceptNext();
+        assertTrue(in.readLine().startsWith("WAIT "));
+
+        out.write("PI".getBytes("UTF-8"));
+        out.flush();
+        Thread.sleep(100);
+        out.write("NG\r\nPING\n".getBytes("UTF-8"));
+        out.flush();
+
+        assertEquals("PONG", in.readLine());
+        assertEquals("PONG", in.readLine());
+        assertEquals(1, transport.getBuffers().freeCount());
+        client.close();
+    }
+
+    /**
+     * Test that a client sending a line that never ends is disconnected.
+     * @throws IOException
+     */
+    public void testLongLine() throws IOException
+    {
+        Socket client = connect();
+        BufferedReader in = reader(client);
+        server.acceptNext();
+        assertTrue(in.readLine().startsWith("WAIT "));
+
+        OutputStream out = client.getOutputStream();
+        out.write(new byte[4096]);
+        out.flush();
+
+        assertNull(in.readLine());
+        client.close();
+    }
+
+    /**
+     * Test that closing the transport while its selector thread is busy
+     * reading stops the thread cleanly.
+     * @throws Exception
+     */
+    public void testCloseWhileReading() throws Exception
+    {
+        final StringBuilder errors = new StringBuilder();
+        Thread.UncaughtExceptionHandler old =
+            Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler()
+        {
+            public void uncaughtException( Thread thread, Throwable e )
+            {
+                synchronized (errors)
+                {
+                    errors.append(e).append(' ');
+                }
+            }
+        });
+
+        try
+        {
+            for (int i = 0; i < 200; i++)
+            {
+                Socket client = connect();
+                server.acceptNext();
+                OutputStream out = client.getOutputStream();
+                for (int j = 0; j < 20; j++)
+                {
+                    out.write("PING\n".getBytes("UTF-8"));
+                }
+                out.flush();
+
+                transport.close();
+                client.close();
+
+                transport = new NioTransport(0);
+                server = new NetBreakServer(transport, new SystemClock());
+            }
+
+            // Give any selector thread still running time to fail.
+            Thread.sleep(200);
+        }
+        finally
+        {
+            Thread.setDefaultUncaughtExceptionHandler(old);
+        }
+
+        synchronized (errors)
+        {
+            assertEquals("", errors.toString());
+        }
+    }
+
+    /**
+     * Test that links closed by another thread while the selector thread is
+     * reading from and writing to them are skipped over, and that the
+     * selector thread carries on reading the other clients.
+     * @throws Exception
+     */
+    public void testCloseLinksWhileReadable() throws Exception
+    {
+        final StringBuilder errors = new StringBuilder();
+        final StringBuilder lines = new StringBuilder();
+        Thread.UncaughtExceptionHandler old =
+            Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler()
+        {
+            public void uncaughtException( Thread thread, Throwable e )
+            {
+                synchronized (errors)
+                {
+                    errors.append(e).append(' ');
+                }
+            }
+        });
+
+        ClientListener listener = new ClientListener()
+        {
+            public void lineReceived( ClientConnection client, String line )
+            {
+                client.sendData("PONG");
+                if (!line.equals("PING"))
+                {
+                    synchronized (lines)
+                    {
+                        lines.append(line);
+                        lines.notifyAll();
+                    }
+                }
+            }
+
+            public void clientLeft( ClientConnection client )
+            {
+                // Nothing to clean up.
+            }
+        };
+
+        final byte[] pings = new byte[5 * 2000];
+        for (int i = 0; i < pings.length; i += 5)
+        {
+            System.arraycopy("PING\n".getBytes("UTF-8"), 0, pings, i, 5);
+        }
+
+        try
+        {
+            long until = System.currentTimeMillis() + 8000;
+            for (int round = 0; round < 500 &&
+                System.currentTimeMillis() < until; round++)
+            {
+                Socket[] sockets = new Socket[30];
+                ClientConnection[] clients = new ClientConnection[30];
+                Thread[] writers = new Thread[30];
+
+                for (int i = 0; i < sockets.length; i++)
+                {
+                    sockets[i] = connect();
+                    clients[i] = new ClientConnection(transport.accept(),
+                        listener);
+                    transport.start(clients[i]);
+
+                    final OutputStream out = sockets[i].getOutputStream();
+                    writers[i] = new Thread()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                out.write(pings);
+                            }
+                            catch (IOException e)
+                            {
+                                // Closed under us, as intended.
+                            }
+                        }
+                    };
+                    writers[i].start();
+                }
+
+                // Close the links while they are being read and answered.
+                Thread.sleep(1);
+                for (ClientConnection client : clients)
+                {
+                    client.close();
+                }
+                for (int i = 0; i < sockets.length; i++)
+                {
+                    writers[i].join();
+                    sockets[i].close();
+                }
+            }
+
+            // The selector thread still reads the next client.
+            Socket socket = connect();
+            transport.start(new ClientConnection(transport.accept(),
+                listener));
+            socket.getOutputStream().write("HELLO\n".getBytes("UTF-8"));
+            synchronized (lines)
+            {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (lines.length() == 0 &&
+                    System.currentTimeMillis() < deadline)
+                {
+                    lines.wait(100);
+                }
+                assertEquals("HELLO", lines.toString());
+            }
+            socket.close();
+        }
+        finally
+        {
+            Thread.setDefaultUncaughtExceptionHandler(old);
+        }
+
+        synchronized (errors)
+        {
+            assertEquals("", errors.toString());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+// -------------------------------------------------------------------------
+/**
+ *  How poor a match two items would make, for the BatchMatcher to keep as
+ *  low as it can over a batch. A cost could be the gap between two players'
+ *  ratings, or how far apart two clients are on the network.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ *  @param <Type> The type of the items being matched.
+ */
+
+public interface PairCost<Type>
+{
+    /**
+     * Get the cost of pairing two items.
+     * @param first
+     *        The item nearer the front of the queue.
+     * @param second
+     *        The item it would be paired with.
+     * @return the cost, 0 or more, or Double.POSITIVE_INFINITY if the items
+     *         should never be paired.
+     */
+    public double cost( Type first, Type second );
+}
@@ -0,0 +1,221 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+
+// -------------------------------------------------------------------------
+/**
+ *  A RegionTable built from address prefixes such as "10.0.0.0/8". An
+ *  address is in the region of the longest prefix that matches it.
+ *
+ *  The prefixes are kept in a binary trie with one level per address bit,
+ *  one trie for IPv4 and one for IPv6, so a lookup takes at most 32 or 128
+ *  steps no matter how many prefixes there are.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class PrefixRegionTable
+    implements RegionTable
+{
+    private TrieNode ipv4;
+    private TrieNode ipv6;
+
+    /**
+     * Create a new empty PrefixRegionTable.
+     */
+    public PrefixRegionTable()
+    {
+        ipv4 = new TrieNode();
+        ipv6 = new TrieNode();
+    }
+
+    /**
+     * Read a table from lines of the form "prefix/length region", such as
+     * "10.0.0.0/8 3". Blank lines and lines starting with # are skipped.
+     * @param source
+     *        Where to read the table from.
+     * @return the table.
+     * @throws IOException if the table can't be read or a line is wrong.
+     */
+    public static PrefixRegionTable load( Reader source ) throws IOException
+    {
+        PrefixRegionTable table = new PrefixRegionTable();
+        BufferedReader in = new BufferedReader(source);
+
+        String line = in.readLine();
+        while (line != null)
+        {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#"))
+            {
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2)
+                {
+                    throw new IOException("Bad region line: " + line);
+                }
+
+                try
+                {
+                    table.add(parts[0], Integer.parseInt(parts[1]));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IOException("Bad region line: " + line);
+                }
+            }
+            line = in.readLine();
+        }
+
+        return table;
+    }
+
+    /**
+     * Add a prefix written as "address/length".
+     * @param prefix
+     *        The prefix, such as "10.0.0.0/8" or "2001:db8::/32".
+     * @param region
+     *        The region addresses under the prefix are in.
+     */
+    public void add( String prefix, int region )
+    {
+        int slash = prefix.indexOf('/');
+        if (slash < 0 || !isLiteral(prefix.substring(0, slash)))
+        {
+            throw new IllegalArgumentException("Not a prefix: " + prefix);
+        }
+
+        try
+        {
+            byte[] address =
+                InetAddress.getByName(prefix.substring(0, slash)).getAddress();
+            add(address, Integer.parseInt(prefix.substring(slash + 1)),
+                region);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Not a prefix: " + prefix);
+        }
+    }
+
+    /**
+     * Add a prefix.
+     * @param address
+     *        The raw bytes of the prefix address.
+     * @param bits
+     *        How many leading bits of the address make up the prefix.
+     * @param region
+     *        The region addresses under the prefix are in.
+     */
+    public void add( byte[] address, int bits, int region )
+    {
+        if (bits < 0 || bits > address.length * 8)
+        {
+            throw new IllegalArgumentException("Bad prefix length " + bits);
+        }
+
+        TrieNode node = root(address);
+        for (int i = 0; i < bits; i++)
+        {
+            if (bit(address, i))
+            {
+                if (node.one == null)
+                {
+                    node.one = new TrieNode();
+                }
+                node = node.one;
+            }
+            else
+            {
+                if (node.zero == null)
+                {
+                    node.zero = new TrieNode();
+                }
+                node = node.zero;
+            }
+        }
+
+        node.region = region;
+        node.hasRegion = true;
+    }
+
+    /**
+     * Find the region of the longest prefix matching an address.
+     * @param address
+     *        The raw bytes of the address.
+     * @return the region number, 0 if no prefix matches.
+     */
+    public int regionOf( byte[] address )
+    {
+        TrieNode node = root(address);
+        int region = 0;
+
+        for (int i = 0; node != null; i++)
+        {
+            if (node.hasRegion)
+            {
+                region = node.region;
+            }
+            if (i == address.length * 8)
+            {
+                break;
+            }
+            node = (bit(address, i) ? node.one : node.zero);
+        }
+
+        return region;
+    }
+
+    /**
+     * Get the trie for the kind of address.
+     * @param address
+     *        The raw bytes of the address.
+     * @return the IPv4 or the IPv6 trie.
+     */
+    private TrieNode root( byte[] address )
+    {
+        return (address.length == 4 ? ipv4 : ipv6);
+    }
+
+    /**
+     * Get one bit of an address, counting from the most significant.
+     * @param address
+     *        The raw bytes of the address.
+     * @param index
+     *        Which bit to get.
+     * @return true if the bit is set.
+     */
+    private static boolean bit( byte[] address, int index )
+    {
+        return ((address[index >> 3] >> (7 - (index & 7))) & 1) != 0;
+    }
+
+    /**
+     * Check that an address is written out as numbers, so that looking it
+     * up never goes to DNS.
+     * @param address
+     *        The address as written.
+     * @return if it is an IPv4 or IPv6 literal.
+     */
+    private static boolean isLiteral( String address )
+    {
+        return address.length() > 0 &&
+            (address.indexOf(':') >= 0 || address.matches("[0-9.]+"));
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A node of the prefix trie.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private static class TrieNode
+    {
+        private TrieNode zero;
+        private TrieNode one;
+        private int region;
+        private boolean hasRegion;
+    }
+}
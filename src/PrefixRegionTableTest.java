@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.StringReader;
+import student.TestCase;
+
+// -------------------------------------------------------------------------
+/**
+ *  TestSuite for the PrefixRegionTable
+ *  Test longest prefix matching for IPv4 and IPv6, and loading tables.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class PrefixRegionTableTest
+    extends TestCase
+{
+    private PrefixRegionTable table;
+
+    /**
+     * Setup method called before all tests.
+     */
+    public void setUp()
+    {
+        table = new PrefixRegionTable();
+        table.add("10.0.0.0/8", 1);
+        table.add("10.1.0.0/16", 2);
+        table.add("2001:db8::/32", 3);
+    }
+
+    /**
+     * Test that the longest matching prefix wins.
+     */
+    public void testLongestPrefix()
+    {
+        assertEquals(2, table.regionOf(new byte[] { 10, 1, 2, 3 }));
+        assertEquals(1, table.regionOf(new byte[] { 10, 2, 0, 0 }));
+        assertEquals(0, table.regionOf(new byte[] { 11, 0, 0, 0 }));
+    }
+
+    /**
+     * Test IPv6 prefixes, which are kept apart from IPv4 ones.
+     */
+    public void testIPv6()
+    {
+        byte[] inside = new byte[16];
+        inside[0] = 0x20;
+        inside[1] = 0x01;
+        inside[2] = 0x0d;
+        inside[3] = (byte)0xb8;
+        inside[15] = 1;
+        assertEquals(3, table.regionOf(inside));
+
+        byte[] outside = new byte[16];
+        outside[0] = 10;
+        assertEquals(0, table.regionOf(outside));
+    }
+
+    /**
+     * Test loading a table, and refusing bad lines.
+     * @throws IOException
+     */
+    public void testLoad() throws IOException
+    {
+        table = PrefixRegionTable.load(new StringReader(
+            "# Regions\n\n0.0.0.0/0 5\n192.168.0.0/16 6\n"));
+        assertEquals(6, table.regionOf(new byte[] { (byte)192, (byte)168,
+            1, 1 }));
+        assertEquals(5, table.regionOf(new byte[] { 1, 2, 3, 4 }));
+
+        boolean caught = false;
+        try
+        {
+            PrefixRegionTable.load(new StringReader("example.com/8 1\n"));
+        }
+        catch (IOException e)
+        {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+}
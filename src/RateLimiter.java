@@ -0,0 +1,291 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  RateLimiter keeps a token bucket for every source address, so that a
+ *  single host can only open connections at a limited rate.
+ *
+ *  Each bucket holds up to a burst of tokens and refills at a steady rate.
+ *  A connection takes one token, and is refused if the bucket is empty. A
+ *  bucket which has refilled all the way is no different from a missing one,
+ *  so full buckets are dropped whenever the table would otherwise grow. That
+ *  way the table only keeps the hosts which have connected recently.
+ *
+ *  The buckets live in open addressed hash tables keyed on the packed bytes
+ *  of the address. The tables are split into stripes with a lock each, so
+ *  checks for different addresses rarely wait on each other.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class RateLimiter
+{
+    private static final int STRIPES = 16;
+    private static final int INITIALCAPACITY = 64;
+
+    private Stripe[] stripes;
+    private double burst;
+    private double perNano;
+    private long refillNanos;
+
+    /**
+     * Create a new RateLimiter.
+     * @param burstSize
+     *        How many connections a host may open at once. At least 1.
+     * @param perSecond
+     *        How many connections per second a host may open over time.
+     */
+    public RateLimiter( double burstSize, double perSecond )
+    {
+        if (burstSize < 1 || perSecond <= 0)
+        {
+            throw new IllegalArgumentException("Burst must be at least 1 " +
+                "and rate must be positive");
+        }
+
+        burst = burstSize;
+        perNano = perSecond / 1e9;
+        refillNanos = (long)Math.ceil(burst / perNano);
+
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Try to take a token for a connection from an address.
+     * @param address
+     *        The raw bytes of the address, as from InetAddress.getAddress().
+     * @return true if the connection is allowed.
+     */
+    public boolean tryAcquire( byte[] address )
+    {
+        return tryAcquire(address, System.nanoTime());
+    }
+
+    /**
+     * Try to take a token for a connection from an address at a given time.
+     * @param address
+     *        The raw bytes of the address.
+     * @param now
+     *        The current time in nanoseconds.
+     * @return true if the connection is allowed.
+     */
+    public boolean tryAcquire( byte[] address, long now )
+    {
+        long hi = pack(address, 0, address.length - 8);
+        long lo = pack(address, Math.max(0, address.length - 8),
+            address.length);
+        long hash = mix(hi * 31 + lo);
+
+        Stripe stripe = stripes[(int)(hash >>> 60) & (STRIPES - 1)];
+        synchronized (stripe)
+        {
+            return stripe.acquire(hi, lo, (int)hash, now);
+        }
+    }
+
+    /**
+     * Get the number of addresses currently being tracked.
+     * @return the number of buckets in the table.
+     */
+    public int size()
+    {
+        int total = 0;
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                total += stripe.count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Pack a range of address bytes into a long.
+     * @param bytes
+     *        The address bytes.
+     * @param from
+     *        The first byte to pack.
+     * @param to
+     *        One past the last byte to pack.
+     * @return the packed bytes.
+     */
+    private static long pack( byte[] bytes, int from, int to )
+    {
+        long packed = 0;
+        for (int i = Math.max(0, from); i < to; i++)
+        {
+            packed = (packed << 8) | (bytes[i] & 0xff);
+        }
+        return packed;
+    }
+
+    /**
+     * Scramble the bits of a key so that similar addresses spread out.
+     * @param key
+     *        The key to scramble.
+     * @return the scrambled key.
+     */
+    private static long mix( long key )
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  One stripe of the bucket table, an open addressed hash table with
+     *  linear probing. Only used while holding its lock.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    private class Stripe
+    {
+        private long[] his;
+        private long[] los;
+        private double[] tokens;
+        private long[] stamps;
+        private boolean[] used;
+        private int count;
+
+        /**
+         * Create a new empty stripe.
+         */
+        public Stripe()
+        {
+            allocate(INITIALCAPACITY);
+        }
+
+        /**
+         * Take a token from the bucket of an address, creating the bucket if
+         * there isn't one yet.
+         * @param hi
+         *        The high bits of the address.
+         * @param lo
+         *        The low bits of the address.
+         * @param hash
+         *        The hash of the address.
+         * @param now
+         *        The current time in nanoseconds.
+         * @return if a token was taken.
+         */
+        public boolean acquire( long hi, long lo, int hash, long now )
+        {
+            int mask = used.length - 1;
+            int i = hash & mask;
+
+            while (used[i])
+            {
+                if (his[i] == hi && los[i] == lo)
+                {
+                    double level = Math.min(burst,
+                        tokens[i] + (now - stamps[i]) * perNano);
+                    stamps[i] = now;
+
+                    if (level < 1)
+                    {
+                        tokens[i] = level;
+                        return false;
+                    }
+
+                    tokens[i] = level - 1;
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+
+            // Make room before taking up more of the table.
+            if ((count + 1) * 2 > used.length)
+            {
+                rebuild(now);
+                return acquire(hi, lo, hash, now);
+            }
+
+            used[i] = true;
+            his[i] = hi;
+            los[i] = lo;
+            tokens[i] = burst - 1;
+            stamps[i] = now;
+            count++;
+
+            return true;
+        }
+
+        /**
+         * Rebuild the table without the buckets that have refilled, growing
+         * it if it is still too full.
+         * @param now
+         *        The current time in nanoseconds.
+         */
+        private void rebuild( long now )
+        {
+            long[] oldHis = his;
+            long[] oldLos = los;
+            double[] oldTokens = tokens;
+            long[] oldStamps = stamps;
+            boolean[] oldUsed = used;
+
+            int live = 0;
+            for (int i = 0; i < oldUsed.length; i++)
+            {
+                if (oldUsed[i] && now - oldStamps[i] < refillNanos)
+                {
+                    live++;
+                }
+            }
+
+            int capacity = INITIALCAPACITY;
+            while (capacity < live * 4)
+            {
+                capacity *= 2;
+            }
+            allocate(capacity);
+
+            int mask = capacity - 1;
+            for (int j = 0; j < oldUsed.length; j++)
+            {
+                if (!oldUsed[j] || now - oldStamps[j] >= refillNanos)
+                {
+                    continue;
+                }
+
+                int i = (int)mix(oldHis[j] * 31 + oldLos[j]) & mask;
+                while (used[i])
+                {
+                    i = (i + 1) & mask;
+                }
+
+                used[i] = true;
+                his[i] = oldHis[j];
+                los[i] = oldLos[j];
+                tokens[i] = oldTokens[j];
+                stamps[i] = oldStamps[j];
+                count++;
+            }
+        }
+
+        /**
+         * Allocate empty arrays for the table.
+         * @param capacity
+         *        The number of entries, a power of two.
+         */
+        private void allocate( int capacity )
+        {
+            his = new long[capacity];
+            los = new long[capacity];
+            tokens = new double[capacity];
+            stamps = new long[capacity];
+            used = new boolean[capacity];
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import student.TestCase;
+
+// -------------------------------------------------------------------------
+/**
+ *  TestSuite for the RateLimiter
+ *  Test bucket refilling, separate addresses and dropping refilled buckets.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class RateLimiterTest
+    extends TestCase
+{
+    private static final long SECOND = 1000000000L;
+
+    private RateLimiter limiter;
+    private byte[] host1;
+    private byte[] host2;
+    private byte[] host6;
+
+    /**
+     * Setup method called before all tests.
+     */
+    public void setUp()
+    {
+        limiter = new RateLimiter(2, 1);
+        host1 = new byte[] { 10, 0, 0, 1 };
+        host2 = new byte[] { 10, 0, 0, 2 };
+        host6 = new byte[16];
+        host6[0] = 0x20;
+        host6[15] = 1;
+    }
+
+    /**
+     * Test that a host can use up its burst and then has to wait for the
+     * bucket to refill.
+     */
+    public void testBurstAndRefill()
+    {
+        assertTrue(limiter.tryAcquire(host1, 0));
+        assertTrue(limiter.tryAcquire(host1, 0));
+        assertFalse(limiter.tryAcquire(host1, 0));
+        assertFalse(limiter.tryAcquire(host1, SECOND / 2));
+        assertTrue(limiter.tryAcquire(host1, SECOND));
+        assertFalse(limiter.tryAcquire(host1, SECOND));
+    }
+
+    /**
+     * Test that hosts have their own buckets.
+     */
+    public void testSeparateHosts()
+    {
+        assertTrue(limiter.tryAcquire(host1, 0));
+        assertTrue(limiter.tryAcquire(host1, 0));
+        assertFalse(limiter.tryAcquire(host1, 0));
+
+        assertTrue(limiter.tryAcquire(host2, 0));
+        assertTrue(limiter.tryAcquire(host6, 0));
+        assertEquals(3, limiter.size());
+    }
+
+    /**
+     * Test that buckets which have refilled are dropped as the table grows,
+     * and that busy buckets are kept.
+     */
+    public void testEviction()
+    {
+        limiter.tryAcquire(host1, 10 * SECOND);
+        limiter.tryAcquire(host1, 10 * SECOND);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            byte[] host = new byte[] { 1, (byte)(i >> 16), (byte)(i >> 8),
+                (byte)i };
+            assertTrue(limiter.tryAcquire(host, i * SECOND / 1000));
+        }
+
+        // Only the last few seconds worth of hosts are still tracked.
+        assertTrue(limiter.size() < 10000);
+        assertFalse(limiter.tryAcquire(host1, 10 * SECOND));
+    }
+
+    /**
+     * Test that bad settings are refused.
+     */
+    public void testBadSettings()
+    {
+        boolean caught = false;
+        try
+        {
+            new RateLimiter(0, 1);
+        }
+        catch (IllegalArgumentException e)
+        {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+}
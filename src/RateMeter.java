@@ -0,0 +1,66 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  RateMeter measures how often something has happened recently, from the
+ *  times of the last few times it happened. The server uses one to measure
+ *  how quickly games are being made.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class RateMeter
+{
+    private long[] times;
+    private int next;
+    private int count;
+
+    /**
+     * Create a new RateMeter.
+     * @param window
+     *        How many of the most recent events to measure over. At least 2.
+     */
+    public RateMeter( int window )
+    {
+        if (window < 2)
+        {
+            throw new IllegalArgumentException("Window must be at least 2");
+        }
+
+        times = new long[window];
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Record that the event happened.
+     * @param nanos
+     *        When it happened, in nanoseconds.
+     */
+    public void mark( long nanos )
+    {
+        times[next] = nanos;
+        next = (next + 1) % times.length;
+        count = Math.min(count + 1, times.length);
+    }
+
+    /**
+     * Get how many times per second the event has happened recently.
+     * @param nanos
+     *        The current time in nanoseconds.
+     * @return the recent rate per second, or 0 if it is not yet known.
+     */
+    public double perSecond( long nanos )
+    {
+        if (count < 2)
+        {
+            return 0;
+        }
+
+        // The oldest event still in the window.
+        long oldest = times[(next - count + times.length) % times.length];
+        long span = nanos - oldest;
+
+        return (span <= 0 ? 0 : (count - 1) * 1e9 / span);
+    }
+}
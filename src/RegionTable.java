@@ -0,0 +1,21 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  Maps client addresses to the region of the world they are in, so that
+ *  the locality matching only pairs clients within a region before their
+ *  deadline. Regions are plain numbers picked by whoever fills the table.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface RegionTable
+{
+    /**
+     * Find the region an address is in.
+     * @param address
+     *        The raw bytes of the address.
+     * @return the region number, 0 if the address isn't in any known region.
+     */
+    public int regionOf( byte[] address );
+}
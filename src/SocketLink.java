@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+// -------------------------------------------------------------------------
+/**
+ *  A Link to a client over a TCP socket.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class SocketLink
+    implements Link
+{
+    private Socket conn;
+    private BufferedReader in;
+    private PrintWriter out;
+
+    /**
+     * Create a new link over a connected socket.
+     * @param socket
+     *        The socket of the incoming connection.
+     * @throws IOException if the socket's streams can't be opened.
+     */
+    public SocketLink( Socket socket ) throws IOException
+    {
+        conn = socket;
+
+        try
+        {
+            in = new BufferedReader( new InputStreamReader(
+                conn.getInputStream() ));
+
+            out = new PrintWriter( conn.getOutputStream(), true );
+        }
+        catch (IOException e)
+        {
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read lines from the socket and hand each to the client connection,
+     * until the client leaves. Blocks, so it runs on the client's own thread.
+     * @param client
+     *        The client connection to hand the lines to.
+     */
+    public void readLines( ClientConnection client )
+    {
+        try
+        {
+            while (client.receive(in.readLine()))
+            {
+                // Keep reading.
+            }
+        }
+        catch (IOException e)
+        {
+            try
+            {
+                client.receive(null);
+            }
+            catch (IOException e1)
+            {
+                System.err.println("Error closing connection.");
+            }
+        }
+    }
+
+    /**
+     * Send a line down the socket.
+     * @param line
+     *        The line of data to send.
+     */
+    public void writeLine( String line )
+    {
+        out.println(line);
+    }
+
+    /**
+     * Get the raw bytes of the client's address.
+     * @return the address bytes.
+     */
+    public byte[] getAddress()
+    {
+        return conn.getInetAddress().getAddress();
+    }
+
+    /**
+     * Get the client's address in String form.
+     * @return the client's address.
+     */
+    public String getHostAddress()
+    {
+        return conn.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Is the client on this machine.
+     * @return if the client's address is a loopback address.
+     */
+    public boolean isLoopback()
+    {
+        return conn.getInetAddress().isLoopbackAddress();
+    }
+
+    /**
+     * Close the socket.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        conn.close();
+    }
+}
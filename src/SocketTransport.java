@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+
+// -------------------------------------------------------------------------
+/**
+ *  The Transport which accepts clients on a TCP port. Each client gets its
+ *  own thread to read lines from.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class SocketTransport
+    implements Transport
+{
+    private ServerSocket server;
+
+    /**
+     * Create a new SocketTransport listening on a port.
+     * @param port
+     *        The port to listen on.
+     * @throws IOException if the port can't be listened on.
+     */
+    public SocketTransport( int port ) throws IOException
+    {
+        server = new ServerSocket(port);
+    }
+
+    /**
+     * Wait for and accept the next client.
+     * @return the link to the new client.
+     * @throws IOException
+     */
+    public Link accept() throws IOException
+    {
+        return new SocketLink(server.accept());
+    }
+
+    /**
+     * Create a thread to read lines from the client and run it.
+     * @param client
+     *        The client to read from.
+     */
+    public void start( final ClientConnection client )
+    {
+        final SocketLink link = (SocketLink)client.getLink();
+
+        Thread cThread = new Thread()
+        {
+            public void run()
+            {
+                link.readLines(client);
+            }
+        };
+        cThread.start();
+    }
+
+    /**
+     * Stop listening on the port.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        server.close();
+    }
+}
@@ -0,0 +1,30 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  The Clock which reads the real time from the system.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class SystemClock
+    implements Clock
+{
+    /**
+     * Get the current system time in milliseconds.
+     * @return the current time in milliseconds.
+     */
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the current value of the system's nanosecond timer.
+     * @return the current time in nanoseconds.
+     */
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+}
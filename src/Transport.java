@@ -0,0 +1,34 @@
+import java.io.IOException;
+
+// -------------------------------------------------------------------------
+/**
+ *  Where the server gets its clients from. The SocketTransport listens on a
+ *  real port, while the MemoryTransport lets a test or a simulation hand
+ *  clients to the server directly.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public interface Transport
+{
+    /**
+     * Accept the next client.
+     * @return the link to the new client, or null if there will be no more.
+     * @throws IOException
+     */
+    public Link accept() throws IOException;
+
+    /**
+     * Start reading lines from a newly accepted client.
+     * @param client
+     *        The client to read from.
+     */
+    public void start( ClientConnection client );
+
+    /**
+     * Stop accepting clients.
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
@@ -1,3 +1,6 @@
+import java.util.ArrayList;
+import java.util.List;
+
 
 // -------------------------------------------------------------------------
 /**
@@ -13,6 +16,19 @@
  *  ValidairQueue is implemented using a doubly linked structure with dummy
  *  nodes on either end.
  *
+ *  A queue created with a grace period does not purge an invalid item right
+ *  away. Its slot is instead held for the grace period, so that a replacement
+ *  item can reclaim the same position through the Slot handed out by push.
+ *  The hold starts when the queue first finds the item invalid, or earlier
+ *  if hold is called on its slot. Held slots keep their place in line but
+ *  are skipped when popping.
+ *
+ *  Every item is numbered in the order it arrived, and a FenwickTree over
+ *  those numbers counts which are still queued. That way the position of a
+ *  slot in the queue can be found in O(log n) time, however many items have
+ *  been removed from the middle. The numbers are compacted whenever they run
+ *  past the end of the tree.
+ *
  *  @author ram
  *  @version 2010.11.16
  *  @param <Item> The type of the objects stored in the pair queue.
@@ -20,14 +36,47 @@
 
 public class ValidPairQueue<Item extends Validity>
 {
+    private static final int INITIALCAPACITY = 64;
+
     private Node<Item> head;
     private Node<Item> tail;
     private int size;
+    private int held;
+    private FenwickTree positions;
+    private int nextSeq;
+    private long grace;
+    private Clock clock;
+    private MatchTrace trace;
+    private PurgeListener<Item> purgeListener;
 
     /**
      * Create a new empty PairQueue.
      */
     public ValidPairQueue()
+    {
+        this(0);
+    }
+
+    /**
+     * Create a new empty PairQueue which holds the slots of invalid items
+     * for a grace period before purging them.
+     * @param graceMillis
+     *        How long, in milliseconds, to hold the slot of an invalid item.
+     */
+    public ValidPairQueue( long graceMillis )
+    {
+        this(graceMillis, new SystemClock());
+    }
+
+    /**
+     * Create a new empty PairQueue which holds the slots of invalid items
+     * for a grace period, timed on the given clock.
+     * @param graceMillis
+     *        How long, in milliseconds, to hold the slot of an invalid item.
+     * @param queueClock
+     *        The clock to time the grace period with.
+     */
+    public ValidPairQueue( long graceMillis, Clock queueClock )
     {
         // Create the dummy nodes.
         head = new Node<Item>( null );
@@ -39,6 +88,11 @@ public class ValidPairQueue<Item extends Validity>
 
         // Set the size.
         size = 0;
+        held = 0;
+        positions = new FenwickTree(INITIALCAPACITY, 0);
+        nextSeq = 0;
+        grace = graceMillis;
+        clock = queueClock;
 
         // Check the queue.
         assert saneQueue();
@@ -48,8 +102,9 @@ public class ValidPairQueue<Item extends Validity>
      * Add an item into the queue.
      * @param item
      *        The item to add to the queue.
+     * @return the slot the item now occupies in the queue.
      */
-    public void push( Item item )
+    public Slot<Item> push( Item item )
     {
         // Make sure everything is valid.
         removeInvalid();
@@ -57,6 +112,14 @@ public class ValidPairQueue<Item extends Validity>
         // Allocate a node.
         Node<Item> newNode = new Node<Item>( item );
 
+        // Number the node and count it in the positions tree.
+        if (nextSeq == positions.capacity())
+        {
+            renumber();
+        }
+        newNode.setSeq(nextSeq++);
+        positions.add(newNode.getSeq(), 1);
+
         // Insert the new node at the end of the queue.
         newNode.setNext(tail);
         newNode.setPrev(tail.getPrev());
@@ -69,6 +132,85 @@ public class ValidPairQueue<Item extends Validity>
 
         // Make sure the queue is still proper.
         assert saneQueue();
+
+        return newNode;
+    }
+
+    /**
+     * Put a new item into a slot that is still in the queue, taking over its
+     * position. If the slot was being held, it is released.
+     * @param slot
+     *        The slot to reclaim.
+     * @param item
+     *        The item that takes over the slot.
+     * @return true if the slot was still queued and has been reclaimed.
+     */
+    public boolean reclaim( Slot<Item> slot, Item item )
+    {
+        Node<Item> node = ownNode(slot);
+
+        if (node == null)
+        {
+            return false;
+        }
+
+        node.setData(item);
+        if (node.isHeld())
+        {
+            node.setHeldUntil(0);
+            held--;
+        }
+
+        assert saneQueue();
+
+        return true;
+    }
+
+    /**
+     * Start holding a slot for the grace period, so that it keeps its place
+     * but isn't popped. Does nothing if the queue has no grace period.
+     * @param slot
+     *        The slot to hold.
+     * @return true if the slot is still queued and is now being held.
+     */
+    public boolean hold( Slot<Item> slot )
+    {
+        Node<Item> node = ownNode(slot);
+
+        if (node == null || grace <= 0)
+        {
+            return false;
+        }
+
+        if (!node.isHeld())
+        {
+            node.setHeldUntil(clock.currentTimeMillis() + grace);
+            held++;
+        }
+
+        assert saneQueue();
+
+        return true;
+    }
+
+    /**
+     * Remove a slot from the queue, wherever it is.
+     * @param slot
+     *        The slot to remove.
+     * @return true if the slot was still queued and has been removed.
+     */
+    public boolean remove( Slot<Item> slot )
+    {
+        Node<Item> node = ownNode(slot);
+
+        if (node == null)
+        {
+            return false;
+        }
+
+        removeNode(node);
+
+        return true;
     }
 
     /**
@@ -77,10 +219,97 @@ public class ValidPairQueue<Item extends Validity>
      * @return are there at least 2 item in the PairQueue.
      */
     public boolean canPop()
+    {
+        return canPop(null);
+    }
+
+    /**
+     * Can we pop a pair off the queue which the filter allows to be paired.
+     * The first item in the queue is paired with the first item after it
+     * that the filter accepts.
+     * @param filter
+     *        Decides which items may be paired, or null to pair any two.
+     * @return is there a pair in the queue we can pop.
+     */
+    public boolean canPop( PairFilter<Item> filter )
+    {
+        removeInvalid();
+
+        return hasPair(filter);
+    }
+
+    /**
+     * Is there a pair in the queue which the filter allows to be paired.
+     * Unlike canPop, this does not scan the queue for invalid items first:
+     * it only steps over those it comes across.
+     * @param filter
+     *        Decides which items may be paired, or null to pair any two.
+     * @return is there a pair in the queue we can take.
+     */
+    public boolean hasPair( PairFilter<Item> filter )
+    {
+        if (size - held < 2)
+        {
+            return false;
+        }
+
+        return (findPartner(nextWaiting(head), filter) != tail);
+    }
+
+    /**
+     * Get the first item in the queue which is not being held, without
+     * removing it.
+     * @return the first item, or null if there is none.
+     */
+    public Item peek()
+    {
+        removeInvalid();
+
+        return front();
+    }
+
+    /**
+     * Get the first valid item in the queue which is not being held, without
+     * removing it or scanning the rest of the queue for invalid items.
+     * @return the first item, or null if there is none.
+     */
+    public Item front()
+    {
+        Node<Item> first = nextWaiting(head);
+
+        return (first == tail ? null : first.getData());
+    }
+
+    /**
+     * Scan the queue for invalid items, holding or purging them. The other
+     * methods which look at the queue do this first themselves, apart from
+     * hasPair, front and take.
+     */
+    public void purge()
+    {
+        removeInvalid();
+    }
+
+    /**
+     * Get the items in the queue which are not being held, front first,
+     * without removing any of them.
+     * @param limit
+     *        The most items to get.
+     * @return up to limit unheld items in queue order.
+     */
+    public List<Item> peekAll( int limit )
     {
         removeInvalid();
 
-        return (size >= 2);
+        List<Item> items = new ArrayList<Item>(Math.min(size - held, limit));
+        for (Node<Item> current = nextWaiting(head);
+            current != tail && items.size() < limit;
+            current = nextWaiting(current))
+        {
+            items.add(current.getData());
+        }
+
+        return items;
     }
 
     /**
@@ -90,19 +319,49 @@ public class ValidPairQueue<Item extends Validity>
      */
     public Pair<Item> pop()
     {
-        if ( !canPop() )
+        return pop(null);
+    }
+
+    /**
+     * Return the first item in the queue together with the first item after
+     * it which the filter allows it to be paired with. Remove these elements
+     * from the queue.
+     * @param filter
+     *        Decides which items may be paired, or null to pair any two.
+     * @return the pair of elements from the queue.
+     */
+    public Pair<Item> pop( PairFilter<Item> filter )
+    {
+        removeInvalid();
+
+        return take(filter);
+    }
+
+    /**
+     * Take the pair pop would, without scanning the queue for invalid items
+     * first. Invalid items come across are stepped over, not purged.
+     * @param filter
+     *        Decides which items may be paired, or null to pair any two.
+     * @return the pair of elements from the queue.
+     */
+    public Pair<Item> take( PairFilter<Item> filter )
+    {
+        if ( !hasPair(filter) )
         {
-            throw new IllegalStateException("Must have at least 2 items in " +
+            throw new IllegalStateException("Must have a pair of items in " +
                 "Queue");
         }
 
-        // Get the data from the queue.
-        Item first = head.getNext().getData();
-        Item second = head.getNext().getNext().getData();
+        // Get the first node and its partner, skipping held nodes.
+        Node<Item> firstNode = nextWaiting(head);
+        Node<Item> secondNode = findPartner(firstNode, filter);
+
+        Item first = firstNode.getData();
+        Item second = secondNode.getData();
 
         // Remove the nodes from the queue.
-        removeNode(head.getNext());
-        removeNode(head.getNext());
+        removeNode(firstNode);
+        removeNode(secondNode);
 
         // Why, Oh Why, Does Java not support creating generic arrays...
         Pair<Item> ret = new Pair<Item>(first, second);
@@ -124,12 +383,121 @@ public class ValidPairQueue<Item extends Validity>
         node.getPrev().setNext(node.getNext());
         node.getNext().setPrev(node.getPrev());
         size--;
+        positions.add(node.getSeq(), -1);
+
+        if (node.isHeld())
+        {
+            held--;
+        }
+
+        // Mark the node as no longer being in the queue.
+        node.setNext(null);
+        node.setPrev(null);
 
         assert saneQueue();
     }
 
     /**
-     * Get the number of items in the queue.
+     * Find the first node after the given one which is not being held and
+     * whose item is still valid. Right after a purge every invalid item is
+     * held, but one may have become invalid since.
+     * @param node
+     *        The node to start searching after.
+     * @return the next node which is waiting, or tail if there is none.
+     */
+    private Node<Item> nextWaiting( Node<Item> node )
+    {
+        Node<Item> current = node.getNext();
+
+        while (current != tail &&
+            (current.isHeld() || !current.getData().isValid()))
+        {
+            current = current.getNext();
+        }
+
+        return current;
+    }
+
+    /**
+     * Find the first node after the given one which may be paired with it.
+     * @param node
+     *        The node to find a partner for.
+     * @param filter
+     *        Decides which items may be paired, or null to pair any two.
+     * @return the partner node, or tail if there is none.
+     */
+    private Node<Item> findPartner( Node<Item> node, PairFilter<Item> filter )
+    {
+        Node<Item> current = nextWaiting(node);
+
+        while (current != tail && filter != null &&
+            !filter.canPair(node.getData(), current.getData()))
+        {
+            current = nextWaiting(current);
+        }
+
+        return current;
+    }
+
+    /**
+     * Turn a slot back into one of our nodes.
+     * @param slot
+     *        The slot handed out by push.
+     * @return the node, or null if the slot is not queued in this queue.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<Item> ownNode( Slot<Item> slot )
+    {
+        if (!(slot instanceof ValidPairQueue.Node) || !slot.isQueued())
+        {
+            return null;
+        }
+
+        Node<Item> node = (Node<Item>)slot;
+
+        return (node.getQueue() == this ? node : null);
+    }
+
+    /**
+     * Get the position of a slot in the queue, counting held slots ahead of
+     * it. The front of the queue is position 1.
+     * @param slot
+     *        The slot to find.
+     * @return the position of the slot, or 0 if it is no longer queued.
+     */
+    public int position( Slot<Item> slot )
+    {
+        Node<Item> node = ownNode(slot);
+
+        if (node == null)
+        {
+            return 0;
+        }
+
+        return positions.prefixSum(node.getSeq());
+    }
+
+    /**
+     * Number the nodes in the queue again from zero, and build a positions
+     * tree with room for as many new nodes again.
+     */
+    private void renumber()
+    {
+        int seq = 0;
+        Node<Item> current = head;
+
+        while (current.getNext() != tail)
+        {
+            current = current.getNext();
+            current.setSeq(seq++);
+        }
+
+        positions = new FenwickTree(Math.max(INITIALCAPACITY, 2 * seq), seq);
+        nextSeq = seq;
+    }
+
+    /**
+     * Get the number of items in the queue, including held slots.
      * @return the size of the queue.
      */
     public int size()
@@ -138,20 +506,78 @@ public class ValidPairQueue<Item extends Validity>
     }
 
     /**
-     * Remove all invalid entries from the queue.
+     * Get the number of slots currently being held for reclaiming.
+     * @return the number of held slots.
+     */
+    public int heldCount()
+    {
+        return held;
+    }
+
+    /**
+     * Remove all invalid entries from the queue. With a grace period, invalid
+     * entries are held first and only removed once their grace runs out.
      */
     private void removeInvalid()
     {
         Node<Item> current = head;
+        long now = (grace > 0 ? clock.currentTimeMillis() : 0);
+        long start = (trace != null ? clock.nanoTime() : 0);
+        int scanned = 0;
 
         while ( current.getNext() != tail )
         {
             current = current.getNext();
-            if (!current.getData().isValid())
+            scanned++;
+            if (current.getData().isValid())
+            {
+                continue;
+            }
+
+            if (grace <= 0 ||
+                (current.isHeld() && now >= current.getHeldUntil()))
             {
+                Node<Item> prev = current.getPrev();
                 removeNode(current);
+                if (purgeListener != null)
+                {
+                    purgeListener.purged(current.getData());
+                }
+                current = prev;
+            }
+            else if (!current.isHeld())
+            {
+                current.setHeldUntil(now + grace);
+                held++;
             }
         }
+
+        if (trace != null)
+        {
+            trace.purged(clock.nanoTime() - start, scanned, size);
+        }
+    }
+
+    /**
+     * Set the trace which is told about every scan for invalid items.
+     * @param queueTrace
+     *        The trace, or null to stop tracing.
+     */
+    public void setTrace( MatchTrace queueTrace )
+    {
+        trace = queueTrace;
+    }
+
+    /**
+     * Set the listener which is told about every invalid item purged from
+     * the queue, so that anything kept about the item elsewhere can be
+     * dropped along with it.
+     * @param listener
+     *        The listener, or null to stop telling anyone.
+     */
+    public void setPurgeListener( PurgeListener<Item> listener )
+    {
+        purgeListener = listener;
     }
 
     // -------------------------------------------------------------------------
@@ -163,10 +589,13 @@ public class ValidPairQueue<Item extends Validity>
      *  @version 2010.11.16
      */
     private class Node<T extends Validity>
+        implements Slot<T>
     {
         private T data;
         private Node<T> next;
         private Node<T> prev;
+        private long heldUntil;
+        private int seq;
 
         /**
          * Create a new node.
@@ -177,6 +606,27 @@ public class ValidPairQueue<Item extends Validity>
             data = nodeData;
             next = null;
             prev = null;
+            heldUntil = 0;
+            seq = 0;
+        }
+
+        /**
+         * Get the arrival number of the node.
+         * @return the node's number in the positions tree.
+         */
+        public int getSeq()
+        {
+            return seq;
+        }
+
+        /**
+         * Set the arrival number of the node.
+         * @param number
+         *        The node's number in the positions tree.
+         */
+        public void setSeq( int number )
+        {
+            seq = number;
         }
 
         /**
@@ -188,6 +638,70 @@ public class ValidPairQueue<Item extends Validity>
             return data;
         }
 
+        /**
+         * Replace the data held in the node.
+         * @param newData the new data for the node.
+         */
+        public void setData( T newData )
+        {
+            data = newData;
+        }
+
+        /**
+         * Get the item occupying this slot.
+         * @return The data represented by the node.
+         */
+        public T getItem()
+        {
+            return data;
+        }
+
+        /**
+         * Is the node still linked into the queue.
+         * @return if the node is still in the queue.
+         */
+        public boolean isQueued()
+        {
+            return (next != null);
+        }
+
+        /**
+         * Is the node being held for a reclaim.
+         * @return if the node is held.
+         */
+        public boolean isHeld()
+        {
+            return (heldUntil != 0);
+        }
+
+        /**
+         * Get the time at which the hold on this node runs out.
+         * @return the hold deadline in milliseconds, or 0 if not held.
+         */
+        public long getHeldUntil()
+        {
+            return heldUntil;
+        }
+
+        /**
+         * Hold the node until the given time, or release it with 0.
+         * @param deadline
+         *        The hold deadline in milliseconds.
+         */
+        public void setHeldUntil( long deadline )
+        {
+            heldUntil = deadline;
+        }
+
+        /**
+         * Get the queue which owns this node.
+         * @return the owning queue.
+         */
+        public ValidPairQueue<Item> getQueue()
+        {
+            return ValidPairQueue.this;
+        }
+
         /**
          * Get the next node in the chain.
          * @return The next node.
@@ -243,6 +757,8 @@ public class ValidPairQueue<Item extends Validity>
         assert headAndTailGood();
         assert checkHeadToTail();
         assert checkTailToHead();
+        assert checkHeld();
+        assert checkPositions();
 
         return true;
     }
@@ -309,6 +825,116 @@ public class ValidPairQueue<Item extends Validity>
         return (jumps == size);
     }
 
+    /**
+     * Internal sanity checking method. Makes sure the held counter matches the
+     * number of held nodes in the list.
+     * @return If the test passes.
+     */
+    private boolean checkHeld()
+    {
+        Node<Item> current = head;
+        int count = 0;
+
+        while (current.getNext() != tail)
+        {
+            current = current.getNext();
+            if (current.isHeld())
+            {
+                count++;
+            }
+        }
+
+        return (count == held);
+    }
+
+    /**
+     * Internal sanity checking method. Makes sure the positions tree puts
+     * every node at its place in the list.
+     * @return If the test passes.
+     */
+    private boolean checkPositions()
+    {
+        Node<Item> current = head;
+        int position = 0;
+
+        while (current.getNext() != tail)
+        {
+            current = current.getNext();
+            position++;
+            if (positions.prefixSum(current.getSeq()) != position)
+            {
+                return false;
+            }
+        }
+
+        return (positions.prefixSum(positions.capacity() - 1) == size);
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  A position in the queue, handed out by push so that the item in it can
+     *  later be removed or replaced without searching the queue.
+     *  @param <Type> The type of the item occupying the slot.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    public interface Slot<Type>
+    {
+        /**
+         * Get the item occupying this slot.
+         * @return the item in the slot.
+         */
+        public Type getItem();
+
+        /**
+         * Is this slot still part of the queue.
+         * @return if the slot is still queued.
+         */
+        public boolean isQueued();
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  Decides whether two items in the queue may be paired with each other.
+     *  @param <Type> The type of the items being paired.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    public interface PairFilter<Type>
+    {
+        /**
+         * Can these two items be paired.
+         * @param first
+         *        The item nearer the front of the queue.
+         * @param second
+         *        The item it would be paired with.
+         * @return if the items may be paired.
+         */
+        public boolean canPair( Type first, Type second );
+    }
+
+    // -------------------------------------------------------------------------
+    /**
+     *  Is told about the invalid items the queue purges, whether right away
+     *  or once their grace period runs out. Items taken off the queue by
+     *  pop or remove are not purged.
+     *  @param <Type> The type of the items being purged.
+     *
+     *  @author agent
+     *  @version 2026.10.19
+     */
+    public interface PurgeListener<Type>
+    {
+        /**
+         * An invalid item has been purged from the queue.
+         * @param item
+         *        The item purged.
+         */
+        public void purged( Type item );
+    }
+
     // -------------------------------------------------------------------------
     /**
      *  The Valid pair queue returns a pair of some type.
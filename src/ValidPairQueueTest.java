@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+import java.util.List;
 import student.TestCase;
 
 // -------------------------------------------------------------------------
@@ -85,6 +87,223 @@ public class ValidPairQueueTest
         assertEquals(item4, pair.second());
     }
 
+    /**
+     * Test that an invalid item's slot is held for the grace period and can
+     * be reclaimed without losing its position.
+     */
+    public void testReclaimHeldSlot()
+    {
+        vpq = new ValidPairQueue<TestItem>(60000);
+        ValidPairQueue.Slot<TestItem> slot = vpq.push(item1);
+        vpq.push(item2);
+        vpq.push(item3);
+
+        item1.setValid(false);
+
+        // The held slot is skipped when popping, but keeps its place.
+        assertTrue(vpq.canPop());
+        assertEquals(1, vpq.heldCount());
+        assertEquals(3, vpq.size());
+
+        TestItem replacement = new TestItem();
+        assertTrue(vpq.reclaim(slot, replacement));
+        assertEquals(0, vpq.heldCount());
+        assertEquals(replacement, slot.getItem());
+
+        ValidPairQueue.Pair<TestItem> pair = vpq.pop();
+        assertEquals(replacement, pair.first());
+        assertEquals(item2, pair.second());
+        assertFalse(slot.isQueued());
+        assertFalse(vpq.reclaim(slot, replacement));
+    }
+
+    /**
+     * Test that held slots are skipped by pop and purged once the grace
+     * period runs out.
+     */
+    public void testHeldSlotExpires()
+        throws InterruptedException
+    {
+        vpq = new ValidPairQueue<TestItem>(1);
+        ValidPairQueue.Slot<TestItem> slot = vpq.push(item1);
+        vpq.push(item2);
+
+        item1.setValid(false);
+        assertFalse(vpq.canPop());
+        assertTrue(slot.isQueued());
+
+        Thread.sleep(10);
+        vpq.push(item3);
+        assertFalse(slot.isQueued());
+        assertEquals(2, vpq.size());
+        assertEquals(0, vpq.heldCount());
+    }
+
+    /**
+     * Test that the purge listener hears about items purged once their grace
+     * runs out, but not about items popped or removed.
+     */
+    public void testPurgeListener()
+    {
+        final List<TestItem> purged = new ArrayList<TestItem>();
+        VirtualClock clock = new VirtualClock();
+        vpq = new ValidPairQueue<TestItem>(1000, clock);
+        vpq.setPurgeListener(new ValidPairQueue.PurgeListener<TestItem>()
+        {
+            public void purged( TestItem item )
+            {
+                purged.add(item);
+            }
+        });
+
+        vpq.push(item1);
+        ValidPairQueue.Slot<TestItem> slot = vpq.push(item2);
+        vpq.push(item3);
+        vpq.push(item4);
+
+        item1.setValid(false);
+        assertTrue(vpq.remove(slot));
+        assertEquals(item3, vpq.pop().first());
+        assertEquals(0, purged.size());
+
+        clock.advance(2000000000L);
+        assertFalse(vpq.canPop());
+        assertEquals(1, purged.size());
+        assertEquals(item1, purged.get(0));
+        assertEquals(0, vpq.size());
+    }
+
+    /**
+     * Test that front, hasPair and take step over invalid items without
+     * purging them, and that purge does.
+     */
+    public void testTakeWithoutPurge()
+    {
+        item1.setValid(false);
+        item2.setValid(false);
+        item3.setValid(false);
+        assertEquals(item4, vpq.front());
+        assertFalse(vpq.hasPair(null));
+        assertEquals(4, vpq.size());
+
+        vpq.purge();
+        assertEquals(item4, vpq.front());
+        assertEquals(1, vpq.size());
+
+        TestItem item5 = new TestItem();
+        vpq.push(item5);
+        ValidPairQueue.Pair<TestItem> pair = vpq.take(null);
+        assertEquals(item4, pair.first());
+        assertEquals(item5, pair.second());
+        assertNull(vpq.front());
+    }
+
+    /**
+     * Test removing a slot from the middle of the queue.
+     */
+    public void testRemoveSlot()
+    {
+        vpq = new ValidPairQueue<TestItem>();
+        vpq.push(item1);
+        ValidPairQueue.Slot<TestItem> slot = vpq.push(item2);
+        vpq.push(item3);
+
+        assertTrue(vpq.remove(slot));
+        assertFalse(vpq.remove(slot));
+        assertEquals(2, vpq.size());
+
+        ValidPairQueue.Pair<TestItem> pair = vpq.pop();
+        assertEquals(item1, pair.first());
+        assertEquals(item3, pair.second());
+    }
+
+    /**
+     * Test popping with a filter, which pairs the first item with the first
+     * item after it that the filter accepts.
+     */
+    public void testPopFiltered()
+    {
+        ValidPairQueue.PairFilter<TestItem> notItem2 =
+            new ValidPairQueue.PairFilter<TestItem>()
+            {
+                public boolean canPair( TestItem first, TestItem second )
+                {
+                    return second != item2;
+                }
+            };
+
+        ValidPairQueue.Pair<TestItem> pair = vpq.pop(notItem2);
+        assertEquals(item1, pair.first());
+        assertEquals(item3, pair.second());
+
+        // item2 is now first, and nothing can be paired with it.
+        ValidPairQueue.PairFilter<TestItem> nothing =
+            new ValidPairQueue.PairFilter<TestItem>()
+            {
+                public boolean canPair( TestItem first, TestItem second )
+                {
+                    return false;
+                }
+            };
+        assertFalse(vpq.canPop(nothing));
+        assertTrue(vpq.canPop());
+    }
+
+    /**
+     * Test finding positions, including after items leave from the middle,
+     * while dropped items are held and after they are purged, and after the
+     * queue has numbered enough items to compact.
+     */
+    public void testPosition()
+    {
+        VirtualClock clock = new VirtualClock();
+        vpq = new ValidPairQueue<TestItem>(1000, clock);
+        ValidPairQueue.Slot<TestItem> first = vpq.push(item1);
+        ValidPairQueue.Slot<TestItem> second = vpq.push(item2);
+        ValidPairQueue.Slot<TestItem> third = vpq.push(item3);
+
+        assertEquals(1, vpq.position(first));
+        assertEquals(3, vpq.position(third));
+
+        assertTrue(vpq.remove(second));
+        assertEquals(0, vpq.position(second));
+        assertEquals(2, vpq.position(third));
+
+        // Keep two items waiting while many others come, go and drop.
+        for (int i = 0; i < 500; i++)
+        {
+            TestItem leaving = new TestItem();
+            ValidPairQueue.Slot<TestItem> dropped = vpq.push(leaving);
+            ValidPairQueue.Slot<TestItem> kept = vpq.push(new TestItem());
+            leaving.setValid(false);
+
+            // The next push holds the dropped slot, which keeps its place.
+            ValidPairQueue.Slot<TestItem> probe = vpq.push(new TestItem());
+            assertTrue(dropped.isQueued());
+            assertEquals(vpq.size(), vpq.position(probe));
+            assertEquals(vpq.position(kept) - 1, vpq.position(dropped));
+            assertTrue(vpq.remove(probe));
+
+            // Every so often the held slots run out and are purged.
+            if (i % 100 == 99)
+            {
+                clock.advance(2000000000L);
+                assertTrue(vpq.canPop());
+                assertEquals(0, vpq.heldCount());
+                assertEquals(0, vpq.position(dropped));
+                assertEquals(vpq.size(), vpq.position(kept));
+            }
+        }
+
+        assertEquals(1, vpq.position(first));
+        assertEquals(2, vpq.position(third));
+        assertEquals(502, vpq.size());
+
+        ValidPairQueue.Slot<TestItem> last = vpq.push(item4);
+        assertEquals(503, vpq.position(last));
+        vpq.pop();
+        assertEquals(501, vpq.position(last));
+    }
 
     /**
      * Test class used for testing the ValidPairQueue
@@ -0,0 +1,66 @@
+
+// -------------------------------------------------------------------------
+/**
+ *  A Clock which only moves when it is told to, so that a simulation can
+ *  run through hours of server time in seconds and get the same results
+ *  every run.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class VirtualClock
+    implements Clock
+{
+    private long now;
+
+    /**
+     * Create a new virtual clock starting at time zero.
+     */
+    public VirtualClock()
+    {
+        now = 0;
+    }
+
+    /**
+     * Get the virtual time in milliseconds.
+     * @return the current time in milliseconds.
+     */
+    public long currentTimeMillis()
+    {
+        return now / 1000000;
+    }
+
+    /**
+     * Get the virtual time in nanoseconds.
+     * @return the current time in nanoseconds.
+     */
+    public long nanoTime()
+    {
+        return now;
+    }
+
+    /**
+     * Move the clock forward.
+     * @param nanos
+     *        How many nanoseconds to move forward by.
+     */
+    public void advance( long nanos )
+    {
+        if (nanos < 0)
+        {
+            throw new IllegalArgumentException("Time can't go backwards");
+        }
+        now += nanos;
+    }
+
+    /**
+     * Move the clock forward to a point in time, if it isn't there already.
+     * @param nanos
+     *        The time in nanoseconds to move to.
+     */
+    public void advanceTo( long nanos )
+    {
+        now = Math.max(now, nanos);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+// -------------------------------------------------------------------------
+/**
+ *  WaiterFootprint measures how much of the server's heap each waiting
+ *  client takes up in compact mode. It runs a NetBreakServer on a
+ *  NioTransport, and has a second JVM open the clients' sockets so that
+ *  their side of each connection isn't counted. The clients connect from
+ *  different loopback addresses, to stay under the rate limit, and the
+ *  server is put in batch mode with no batches run, so nobody is matched.
+ *
+ *  It prints the heap used per waiting client, first with the server
+ *  matching in order and then with a locality index kept as well. Only the
+ *  Java heap is counted: the kernel's socket buffers come on top.
+ *
+ *  Run with `java WaiterFootprint [clients]`.
+ *
+ *  @author agent
+ *  @version 2026.10.19
+ */
+
+public class WaiterFootprint
+{
+    private static final int WARMUP = 200;
+    private static final long SETTLEMILLIS = 200;
+
+    /**
+     * Run the measurement from the command line and print the results, or
+     * with "connect port count" open the clients for it.
+     * @param argv The number of clients, optional.
+     * @throws Exception if the server or the clients can't be run.
+     */
+    public static void main( String[] argv ) throws Exception
+    {
+        if (argv.length > 0 && argv[0].equals("connect"))
+        {
+            connect(Integer.valueOf(argv[1]), Integer.valueOf(argv[2]),
+                Integer.valueOf(argv[3]));
+            return;
+        }
+
+        int clientCount = (argv.length > 0 ? Integer.valueOf(argv[0]) :
+            5000);
+
+        System.out.println("locality  clients  bytes/client");
+        for (boolean locality : new boolean[] { false, true })
+        {
+            System.out.println(String.format("%8s  %7d  %12.0f",
+                locality ? "on" : "off", clientCount,
+                measure(clientCount, locality)));
+        }
+    }
+
+    /**
+     * Measure the heap used per waiting client.
+     * @param clientCount
+     *        How many clients to measure over.
+     * @param locality
+     *        Whether to keep a locality index of the clients.
+     * @return the mean bytes of heap per waiting client.
+     * @throws Exception if the server or the clients can't be run.
+     */
+    public static double measure( int clientCount, boolean locality )
+        throws Exception
+    {
+        final NioTransport transport = new NioTransport(0);
+        final NetBreakServer server = new NetBreakServer(transport,
+            new SystemClock());
+        server.setBatching(new AddressDistance());
+        if (locality)
+        {
+            server.setLocality(null, 0, Long.MAX_VALUE);
+        }
+
+        Thread serving = new Thread()
+        {
+            public void run()
+            {
+                server.serve();
+            }
+        };
+        serving.setDaemon(true);
+        serving.start();
+
+        // Warm up first, so the classes loaded and the pools filled along
+        // the way aren't counted.
+        Process warmup = launch(transport.getPort(), 0, WARMUP);
+        awaitWaiting(server, WARMUP);
+        long before = usedHeap();
+
+        Process clients = launch(transport.getPort(), WARMUP, clientCount);
+        awaitWaiting(server, WARMUP + clientCount);
+        long after = usedHeap();
+
+        warmup.destroy();
+        clients.destroy();
+        warmup.waitFor();
+        clients.waitFor();
+        transport.close();
+        serving.join();
+
+        return (after - before) / (double)clientCount;
+    }
+
+    /**
+     * Start a JVM opening clients to the server.
+     * @param port
+     *        The port the server listens on.
+     * @param first
+     *        The number of the first client, which picks its address.
+     * @param count
+     *        How many clients to open.
+     * @return the process.
+     * @throws IOException if the JVM can't be started.
+     */
+    private static Process launch( int port, int first, int count )
+        throws IOException
+    {
+        String java = System.getProperty("java.home") + "/bin/java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+            System.getProperty("java.class.path"), "WaiterFootprint",
+            "connect", "" + port, "" + first, "" + count);
+        builder.redirectErrorStream(true);
+        return builder.start();
+    }
+
+    /**
+     * Open clients to the server, each from its own loopback address, and
+     * hold them open until standard input closes.
+     * @param port
+     *        The port the server listens on.
+     * @param first
+     *        The number of the first client.
+     * @param count
+     *        How many clients to open.
+     * @throws IOException if a client can't connect.
+     */
+    private static void connect( int port, int first, int count )
+        throws IOException
+    {
+        InetAddress server = InetAddress.getByName("127.0.0.1");
+        List<Socket> sockets = new ArrayList<Socket>(count);
+
+        for (int i = first; i < first + count; i++)
+        {
+            // Skip 127.0.0.0 and 127.0.0.1, leaving the server its own.
+            int host = i + 2;
+            InetAddress local = InetAddress.getByAddress(new byte[] {
+                127, (byte)(host >>> 16), (byte)(host >>> 8), (byte)host });
+            Socket socket = new Socket(server, port, local, 0);
+            new BufferedReader(new InputStreamReader(
+                socket.getInputStream())).readLine();
+            sockets.add(socket);
+        }
+
+        while (System.in.read() >= 0)
+        {
+            // Hold the clients open.
+        }
+    }
+
+    /**
+     * Wait for the server to have a number of clients waiting.
+     * @param server
+     *        The server.
+     * @param count
+     *        How many clients to wait for.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void awaitWaiting( NetBreakServer server, int count )
+        throws InterruptedException
+    {
+        while (server.waitingCount() < count)
+        {
+            Thread.sleep(SETTLEMILLIS);
+        }
+    }
+
+    /**
+     * Get how much of the heap is in use, once the garbage is collected.
+     * @return the bytes in use.
+     * @throws InterruptedException if interrupted while settling.
+     */
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+
+        // Take the least of a few readings, in case a collection was
+        // still in progress.
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(SETTLEMILLIS);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}